@@ -1,18 +1,130 @@
 package sh.lalit.fox;
 
-public class AstPrinter implements Expr.Visitor<String> {
+import java.util.List;
+
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
   public String print(Expr expr) {
     return expr.accept(this);
   }
 
+  public String print(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // one top level statement per line
+  public String print(List<Stmt> statements) {
+    StringBuilder builder = new StringBuilder();
+    for (Stmt statement : statements) {
+      builder.append(print(statement)).append("\n");
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public String visitBlockStmt(Stmt.Block stmt) {
+    return block("block", stmt.statements);
+  }
+
+  @Override
+  public String visitClassStmt(Stmt.Class stmt) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(class ").append(stmt.name.lexeme);
+    if (stmt.superclass != null) {
+      builder.append(" < ").append(print(stmt.superclass));
+    }
+    for (Stmt.Function method : stmt.methods) {
+      builder.append(" ").append(print(method));
+    }
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public String visitExpressionStmt(Stmt.Expression stmt) {
+    return paranthesize(";", stmt.expression);
+  }
+
+  @Override
+  public String visitFunctionStmt(Stmt.Function stmt) {
+    StringBuilder name = new StringBuilder();
+    name.append("fun ").append(stmt.name.lexeme).append("(");
+    for (int i = 0; i < stmt.params.size(); i++) {
+      if (i > 0)
+        name.append(" ");
+      name.append(stmt.params.get(i).lexeme);
+    }
+    name.append(")");
+    return block(name.toString(), stmt.body);
+  }
+
+  @Override
+  public String visitIfStmt(Stmt.If stmt) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(if ").append(print(stmt.condition)).append(" ").append(print(stmt.thenBranch));
+    if (stmt.elseBranch != null) {
+      builder.append(" ").append(print(stmt.elseBranch));
+    }
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public String visitPrintStmt(Stmt.Print stmt) {
+    return paranthesize("print", stmt.expression);
+  }
+
+  @Override
+  public String visitYieldStmt(Stmt.Yield stmt) {
+    if (stmt.value == null)
+      return "(yield)";
+    return paranthesize("yield", stmt.value);
+  }
+
+  @Override
+  public String visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null)
+      return "(return)";
+    return paranthesize("return", stmt.value);
+  }
+
+  @Override
+  public String visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null)
+      return "(var " + stmt.name.lexeme + ")";
+    return paranthesize("var " + stmt.name.lexeme, stmt.initializer);
+  }
+
+  @Override
+  public String visitWhileStmt(Stmt.While stmt) {
+    if (stmt.increment != null) {
+      return "(while " + print(stmt.condition) + " " + print(stmt.body) + " " + print(stmt.increment) + ")";
+    }
+    return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+  }
+
+  @Override
+  public String visitAssignExpr(Expr.Assign expr) {
+    return paranthesize("= " + expr.name.lexeme, expr.value);
+  }
+
   @Override
   public String visitBinaryExpr(Expr.Binary expr) {
     return paranthesize(expr.operator.lexeme, expr.left, expr.right);
   }
 
   @Override
-  public String visitUnaryExpr(Expr.Unary expr) {
-    return paranthesize(expr.operator.lexeme, expr.right);
+  public String visitCallExpr(Expr.Call expr) {
+    Expr[] exprs = new Expr[expr.arguments.size() + 1];
+    exprs[0] = expr.callee;
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      exprs[i + 1] = expr.arguments.get(i);
+    }
+    return paranthesize("call", exprs);
+  }
+
+  @Override
+  public String visitGetExpr(Expr.Get expr) {
+    return paranthesize(". " + expr.name.lexeme, expr.object);
   }
 
   @Override
@@ -24,9 +136,41 @@ public class AstPrinter implements Expr.Visitor<String> {
   public String visitLiteralExpr(Expr.Literal expr) {
     if (expr.value == null)
       return "nil";
+    if (expr.value instanceof String)
+      return "\"" + expr.value + "\"";
     return expr.value.toString();
   }
 
+  @Override
+  public String visitLogicalExpr(Expr.Logical expr) {
+    return paranthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  @Override
+  public String visitSetExpr(Expr.Set expr) {
+    return paranthesize("=. " + expr.name.lexeme, expr.object, expr.value);
+  }
+
+  @Override
+  public String visitSuperExpr(Expr.Super expr) {
+    return "(super " + expr.method.lexeme + ")";
+  }
+
+  @Override
+  public String visitThisExpr(Expr.This expr) {
+    return "this";
+  }
+
+  @Override
+  public String visitUnaryExpr(Expr.Unary expr) {
+    return paranthesize(expr.operator.lexeme, expr.right);
+  }
+
+  @Override
+  public String visitVariableExpr(Expr.Variable expr) {
+    return expr.name.lexeme;
+  }
+
   private String paranthesize(String name, Expr... exprs) {
     StringBuilder builder = new StringBuilder();
     builder.append("(").append(name);
@@ -37,4 +181,15 @@ public class AstPrinter implements Expr.Visitor<String> {
     builder.append(")");
     return builder.toString();
   }
+
+  private String block(String name, List<Stmt> statements) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(").append(name);
+    for (Stmt statement : statements) {
+      builder.append(" ");
+      builder.append(statement.accept(this));
+    }
+    builder.append(")");
+    return builder.toString();
+  }
 }
@@ -0,0 +1,46 @@
+package sh.lalit.fox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// the bytecode of a single function: the instruction stream, the source line
+// of every byte (for runtime errors) and the constant pool
+class Chunk {
+    byte[] code = new byte[32];
+    int[] lines = new int[32];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+    // numbers and strings are deduplicated so that e.g. a property name used
+    // many times in a function only takes one slot
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        boolean shareable = value instanceof Double || value instanceof String;
+        if (shareable) {
+            Integer index = constantIndex.get(value);
+            if (index != null) {
+                return index;
+            }
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (shareable) {
+            constantIndex.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+}
@@ -0,0 +1,339 @@
+package sh.lalit.fox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// just enough of a class file writer for Jit: a constant pool, fields, and
+// methods with a Code attribute. classes are written as version 49 (java 5)
+// so the verifier infers the types in each frame itself and no StackMapTable
+// has to be computed
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int CHECKCAST = 0xc0;
+    private static final int WIDE = 0xc4;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    private final DataOutputStream membersOut = new DataOutputStream(members);
+    private int fieldCount = 0;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount = 0;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    ClassWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // constant pool entries are shared, keyed by their tag and contents
+
+    int utf8(String value) {
+        return entry("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return entry("C" + name, 7, out -> out.writeShort(nameIndex));
+    }
+
+    int doubleConstant(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        index = entry(key, 6, out -> out.writeDouble(value));
+        poolCount++; // doubles take up two entries of the pool
+        return index;
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int classIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + ' ' + descriptor, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return entry(tag + owner + '.' + name + descriptor, tag, out -> {
+            out.writeShort(classIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, int tag, EntryWriter writer) {
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndices.put(key, poolCount);
+        return poolCount++;
+    }
+
+    void field(int access, String name, String descriptor) {
+        try {
+            membersOut.writeShort(access);
+            membersOut.writeShort(utf8(name));
+            membersOut.writeShort(utf8(descriptor));
+            membersOut.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fieldCount++;
+    }
+
+    void method(int access, String name, String descriptor, Code code) {
+        int codeAttribute = utf8("Code");
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(descriptor));
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(codeAttribute);
+            methodsOut.writeInt(12 + code.length);
+            methodsOut.writeShort(code.maxStack);
+            methodsOut.writeShort(code.maxLocals);
+            methodsOut.writeInt(code.length);
+            methodsOut.write(code.bytes, 0, code.length);
+            methodsOut.writeShort(0); // exception table
+            methodsOut.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            out.writeShort(fieldCount);
+            members.writeTo(out);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // the code of one method. keeps track of the operand stack depth so the
+    // Code attribute can be given its max_stack
+    static final class Code {
+        private byte[] bytes = new byte[256];
+        int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        int maxLocals = 0;
+
+        void op(int opcode, int stackChange) {
+            u1(opcode);
+            adjust(stackChange);
+        }
+
+        void op1(int opcode, int operand, int stackChange) {
+            u1(opcode);
+            u1(operand);
+            adjust(stackChange);
+        }
+
+        void op2(int opcode, int operand, int stackChange) {
+            u1(opcode);
+            u2(operand);
+            adjust(stackChange);
+        }
+
+        // loads and stores of locals, with a wide prefix when the index doesn't fit a byte
+        void local(int opcode, int index, int stackChange) {
+            if (index > 0xff) {
+                u1(WIDE);
+                op2(opcode, index, stackChange);
+            } else {
+                op1(opcode, index, stackChange);
+            }
+        }
+
+        void pushInt(int value) {
+            if (value == 0 || value == 1) {
+                op(value == 0 ? ICONST_0 : ICONST_1, 1);
+            } else if (value <= Byte.MAX_VALUE) {
+                op1(BIPUSH, value, 1);
+            } else {
+                op2(SIPUSH, value, 1);
+            }
+        }
+
+        void invoke(int opcode, int method, String descriptor) {
+            int change = returnSize(descriptor) - argumentsSize(descriptor);
+            if (opcode != INVOKESTATIC) {
+                change--;
+            }
+            if (opcode == INVOKEINTERFACE) {
+                u1(opcode);
+                u2(method);
+                u1(argumentsSize(descriptor) + 1);
+                u1(0);
+                adjust(change);
+            } else {
+                op2(opcode, method, change);
+            }
+        }
+
+        // emits a forward jump and returns where it is, for patch
+        int jump(int opcode) {
+            int at = length;
+            op2(opcode, 0, opcode == GOTO ? 0 : -1);
+            return at;
+        }
+
+        // points a forward jump at the current end of the code
+        void patch(int jump) {
+            int offset = length - jump;
+            bytes[jump + 1] = (byte) (offset >> 8);
+            bytes[jump + 2] = (byte) offset;
+        }
+
+        void jumpBack(int opcode, int target) {
+            op2(opcode, target - length, opcode == GOTO ? 0 : -1);
+        }
+
+        // also called directly for code after an unconditional jump, which the
+        // straight line tracking would otherwise count on top of the branch it
+        // jumped over
+        void adjust(int stackChange) {
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private static int argumentsSize(String descriptor) {
+            int size = 0;
+            int i = 1;
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                if (c == 'D' || c == 'J') {
+                    size += 2;
+                    i++;
+                    continue;
+                }
+                size++;
+                while (descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                i++;
+            }
+            return size;
+        }
+
+        private static int returnSize(String descriptor) {
+            char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+            return c == 'V' ? 0 : c == 'D' || c == 'J' ? 2 : 1;
+        }
+    }
+}
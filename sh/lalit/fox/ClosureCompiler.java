@@ -0,0 +1,511 @@
+package sh.lalit.fox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// turns the AST into a tree of java lambdas once, with operators, resolved
+// slots and constants picked at compile time, so running the program doesn't
+// go through accept/visit or switch on operator types. the lambdas are given
+// the interpreter and the environment to run in instead of keeping them in
+// fields, so tasks on other threads can run the same lambdas, and do exactly
+// what the matching Interpreter visit method does, reusing its call,
+// property and error handling
+final class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>, Stmt.Visitor<ClosureCompiler.Exec> {
+    interface Eval {
+        Object eval(Interpreter interpreter, Environment env);
+    }
+
+    interface Exec {
+        Completion exec(Interpreter interpreter, Environment env);
+    }
+
+    // for expressions Interpreter.isNumeric accepts
+    private interface NumberEval {
+        double eval(Interpreter interpreter, Environment env);
+    }
+
+    private ClosureCompiler() {
+    }
+
+    // the lambdas don't hold on to any globals either, so a program compiled
+    // once can be run by any number of contexts, see CompiledScript
+    static Exec compile(List<Stmt> statements) {
+        return new ClosureCompiler().sequence(statements);
+    }
+
+    static void run(Exec program, Interpreter interpreter) {
+        try {
+            program.exec(interpreter, interpreter.globals);
+        } catch (RuntimeError error) {
+            interpreter.errors.runtimeError(error);
+        }
+    }
+
+    private Eval compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Exec compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // runs statements in the environment it's given, like Interpreter.executeBlock
+    private Exec sequence(List<Stmt> statements) {
+        Exec[] execs = new Exec[statements.size()];
+        for (int i = 0; i < execs.length; i++) {
+            execs[i] = compile(statements.get(i));
+        }
+        if (execs.length == 1) {
+            return execs[0];
+        }
+        return (interpreter, env) -> {
+            for (Exec exec : execs) {
+                if (exec.exec(interpreter, env) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt) {
+        Exec body = sequence(stmt.statements);
+        int slots = stmt.slots;
+        return (interpreter, env) -> body.exec(interpreter, new Environment(env, slots));
+    }
+
+    @Override
+    public Exec visitClassStmt(Stmt.Class stmt) {
+        Eval superclassEval = stmt.superclass != null ? compile(stmt.superclass) : null;
+        Token superclassName = stmt.superclass != null ? stmt.superclass.name : null;
+        List<Stmt.Function> declarations = stmt.methods;
+        List<Exec> bodies = new ArrayList<>();
+        for (Stmt.Function method : declarations) {
+            bodies.add(sequence(method.body));
+        }
+        Symbol name = stmt.name.symbol;
+        return (interpreter, env) -> {
+            Object superclass = null;
+            Environment methodEnv = env;
+            if (superclassEval != null) {
+                superclass = superclassEval.eval(interpreter, env);
+                if (!(superclass instanceof FoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass has to be a class.");
+                }
+                methodEnv = new Environment(env, 1);
+                methodEnv.define(Symbol.SUPER, superclass);
+            }
+            Map<Symbol, FoxFunction> methods = new HashMap<>();
+            for (int i = 0; i < declarations.size(); i++) {
+                Stmt.Function method = declarations.get(i);
+                methods.put(method.name.symbol,
+                        new FoxFunction(method, methodEnv, method.name.symbol == Symbol.INIT, bodies.get(i)));
+            }
+            env.define(name, new FoxClass(name.name, (FoxClass) superclass, methods));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        Eval expression = compile(stmt.expression);
+        return (interpreter, env) -> {
+            expression.eval(interpreter, env);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitFunctionStmt(Stmt.Function stmt) {
+        Exec body = sequence(stmt.body);
+        Symbol name = stmt.name.symbol;
+        return (interpreter, env) -> {
+            env.define(name, new FoxFunction(stmt, env, false, body));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return (interpreter, env) -> Interpreter.isTruthy(condition.eval(interpreter, env)) ? thenBranch.exec(interpreter, env) : Completion.NORMAL;
+        }
+        Exec elseBranch = compile(stmt.elseBranch);
+        return (interpreter, env) -> Interpreter.isTruthy(condition.eval(interpreter, env)) ? thenBranch.exec(interpreter, env) : elseBranch.exec(interpreter, env);
+    }
+
+    @Override
+    public Exec visitPrintStmt(Stmt.Print stmt) {
+        Eval expression = compile(stmt.expression);
+        return (interpreter, env) -> {
+            interpreter.out.println(Interpreter.stringify(expression.eval(interpreter, env)));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitYieldStmt(Stmt.Yield stmt) {
+        Eval value = stmt.value != null ? compile(stmt.value) : (interpreter, env) -> null;
+        return (interpreter, env) -> {
+            FoxGenerator.yield(value.eval(interpreter, env));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return (interpreter, env) -> {
+                interpreter.returnValue = null;
+                return Completion.RETURN;
+            };
+        }
+        Eval value = compile(stmt.value);
+        return (interpreter, env) -> {
+            interpreter.returnValue = value.eval(interpreter, env);
+            return Completion.RETURN;
+        };
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        Symbol name = stmt.name.symbol;
+        if (stmt.initializer == null) {
+            return (interpreter, env) -> {
+                env.define(name, null);
+                return Completion.NORMAL;
+            };
+        }
+        Eval initializer = compile(stmt.initializer);
+        return (interpreter, env) -> {
+            env.define(name, initializer.eval(interpreter, env));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        Eval condition = compile(stmt.condition);
+        Eval increment = stmt.increment != null ? compile(stmt.increment) : (interpreter, env) -> null;
+        if (stmt.reuseFrame) {
+            // like Interpreter.visitWhileStmt, one frame for every iteration
+            Exec body = sequence(((Stmt.Block) stmt.body).statements);
+            int slots = ((Stmt.Block) stmt.body).slots;
+            return (interpreter, env) -> {
+                Environment frame = new Environment(env, slots);
+                while (Interpreter.isTruthy(condition.eval(interpreter, env))) {
+                    frame.reset();
+                    if (body.exec(interpreter, frame) == Completion.RETURN) {
+                        return Completion.RETURN;
+                    }
+                    increment.eval(interpreter, env);
+                }
+                return Completion.NORMAL;
+            };
+        }
+        Exec body = compile(stmt.body);
+        return (interpreter, env) -> {
+            while (Interpreter.isTruthy(condition.eval(interpreter, env))) {
+                if (body.exec(interpreter, env) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
+                increment.eval(interpreter, env);
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        Eval value = compile(expr.value);
+        int depth = expr.depth;
+        int slot = expr.slot;
+        if (depth == Resolver.GLOBAL) {
+            Token name = expr.name;
+            return (interpreter, env) -> {
+                Object result = value.eval(interpreter, env);
+                interpreter.globals.assign(name, result);
+                return result;
+            };
+        }
+        return (interpreter, env) -> {
+            Object result = value.eval(interpreter, env);
+            env.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH: {
+                NumberEval number = compileNumber(expr);
+                return (interpreter, env) -> Interpreter.box(number.eval(interpreter, env));
+            }
+            case PLUS: {
+                if (Interpreter.isNumeric(expr.left) && Interpreter.isNumeric(expr.right)) {
+                    NumberEval number = compileNumber(expr);
+                    return (interpreter, env) -> Interpreter.box(number.eval(interpreter, env));
+                }
+                Eval left = compile(expr.left);
+                Eval right = compile(expr.right);
+                return (interpreter, env) -> interpreter.addGeneric(expr, left.eval(interpreter, env), right.eval(interpreter, env));
+            }
+            case GREATER: {
+                NumberEval left = leftNumber(expr);
+                NumberEval right = rightNumber(expr);
+                return (interpreter, env) -> left.eval(interpreter, env) > right.eval(interpreter, env);
+            }
+            case GREATER_EQUAL: {
+                NumberEval left = leftNumber(expr);
+                NumberEval right = rightNumber(expr);
+                return (interpreter, env) -> left.eval(interpreter, env) >= right.eval(interpreter, env);
+            }
+            case LESS: {
+                NumberEval left = leftNumber(expr);
+                NumberEval right = rightNumber(expr);
+                return (interpreter, env) -> left.eval(interpreter, env) < right.eval(interpreter, env);
+            }
+            case LESS_EQUAL: {
+                NumberEval left = leftNumber(expr);
+                NumberEval right = rightNumber(expr);
+                return (interpreter, env) -> left.eval(interpreter, env) <= right.eval(interpreter, env);
+            }
+            case BANG_EQUAL: {
+                NumberEval left = leftNumber(expr);
+                NumberEval right = rightNumber(expr);
+                return (interpreter, env) -> Double.compare(left.eval(interpreter, env), right.eval(interpreter, env)) != 0;
+            }
+            case EQUAL_EQUAL: {
+                NumberEval left = leftNumber(expr);
+                NumberEval right = rightNumber(expr);
+                return (interpreter, env) -> Double.compare(left.eval(interpreter, env), right.eval(interpreter, env)) == 0;
+            }
+            default: {
+                Eval left = compile(expr.left);
+                Eval right = compile(expr.right);
+                return (interpreter, env) -> {
+                    left.eval(interpreter, env);
+                    right.eval(interpreter, env);
+                    return null;
+                };
+            }
+        }
+    }
+
+    // the unboxed path of Interpreter.evaluateDouble
+    private NumberEval compileNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            double value = (double) ((Expr.Literal) expr).value;
+            return (interpreter, env) -> value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return compileNumber(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (Interpreter.isNumeric(unary.right)) {
+                NumberEval right = compileNumber(unary.right);
+                return (interpreter, env) -> -right.eval(interpreter, env);
+            }
+            Eval right = compile(unary.right);
+            Token operator = unary.operator;
+            return (interpreter, env) -> {
+                Object value = right.eval(interpreter, env);
+                if (!(value instanceof Double)) {
+                    throw new RuntimeError(operator, "Operand must be a number.");
+                }
+                return -(double) value;
+            };
+        }
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case MINUS: {
+                NumberEval left = leftNumber(binary);
+                NumberEval right = rightNumber(binary);
+                return (interpreter, env) -> left.eval(interpreter, env) - right.eval(interpreter, env);
+            }
+            case STAR: {
+                NumberEval left = leftNumber(binary);
+                NumberEval right = rightNumber(binary);
+                return (interpreter, env) -> left.eval(interpreter, env) * right.eval(interpreter, env);
+            }
+            case SLASH: {
+                NumberEval left = leftNumber(binary);
+                NumberEval right = rightNumber(binary);
+                return (interpreter, env) -> left.eval(interpreter, env) / right.eval(interpreter, env);
+            }
+            default: {
+                NumberEval left = compileNumber(binary.left);
+                NumberEval right = compileNumber(binary.right);
+                return (interpreter, env) -> left.eval(interpreter, env) + right.eval(interpreter, env);
+            }
+        }
+    }
+
+    // same as Interpreter.leftNumber, the right operand still runs before
+    // the error about the left one
+    private NumberEval leftNumber(Expr.Binary expr) {
+        if (Interpreter.isNumeric(expr.left)) {
+            return compileNumber(expr.left);
+        }
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        Token operator = expr.operator;
+        return (interpreter, env) -> {
+            Object value = left.eval(interpreter, env);
+            if (!(value instanceof Double)) {
+                right.eval(interpreter, env);
+                throw new RuntimeError(operator, "Left Operand must be a number");
+            }
+            return (double) value;
+        };
+    }
+
+    private NumberEval rightNumber(Expr.Binary expr) {
+        if (Interpreter.isNumeric(expr.right)) {
+            return compileNumber(expr.right);
+        }
+        Eval right = compile(expr.right);
+        Token operator = expr.operator;
+        return (interpreter, env) -> {
+            Object value = right.eval(interpreter, env);
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Right operand must be a number");
+            }
+            return (double) value;
+        };
+    }
+
+    @Override
+    public Eval visitCallExpr(Expr.Call expr) {
+        Eval[] arguments = new Eval[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Eval object = compile(get.object);
+            if (expr.tail) {
+                return (interpreter, env) -> {
+                    Object value = object.eval(interpreter, env);
+                    InlineCache entry = interpreter.lookupCallee(get, value);
+                    Object field = Interpreter.fieldCallee(entry, value);
+                    return interpreter.tailCallProperty(expr, value, entry, field, evaluate(arguments, interpreter, env));
+                };
+            }
+            return (interpreter, env) -> {
+                Object value = object.eval(interpreter, env);
+                InlineCache entry = interpreter.lookupCallee(get, value);
+                Object field = Interpreter.fieldCallee(entry, value);
+                return interpreter.callProperty(expr, value, entry, field, evaluate(arguments, interpreter, env));
+            };
+        }
+        Eval callee = compile(expr.callee);
+        if (expr.tail) {
+            return (interpreter, env) -> interpreter.tailCall(expr, callee.eval(interpreter, env), evaluate(arguments, interpreter, env));
+        }
+        return (interpreter, env) -> interpreter.call(expr, callee.eval(interpreter, env), evaluate(arguments, interpreter, env));
+    }
+
+    private static List<Object> evaluate(Eval[] arguments, Interpreter interpreter, Environment env) {
+        List<Object> values = new ArrayList<>();
+        for (Eval argument : arguments) {
+            values.add(argument.eval(interpreter, env));
+        }
+        return values;
+    }
+
+    @Override
+    public Eval visitGetExpr(Expr.Get expr) {
+        Eval object = compile(expr.object);
+        return (interpreter, env) -> interpreter.getProperty(expr, object.eval(interpreter, env));
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return (interpreter, env) -> value;
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return (interpreter, env) -> {
+                Object value = left.eval(interpreter, env);
+                return Interpreter.isTruthy(value) ? value : right.eval(interpreter, env);
+            };
+        }
+        return (interpreter, env) -> {
+            Object value = left.eval(interpreter, env);
+            return !Interpreter.isTruthy(value) ? value : right.eval(interpreter, env);
+        };
+    }
+
+    @Override
+    public Eval visitSetExpr(Expr.Set expr) {
+        Eval object = compile(expr.object);
+        Eval value = compile(expr.value);
+        return (interpreter, env) -> {
+            FoxInstance instance = interpreter.fieldOwner(expr, object.eval(interpreter, env));
+            return interpreter.setProperty(expr, instance, value.eval(interpreter, env));
+        };
+    }
+
+    @Override
+    public Eval visitSuperExpr(Expr.Super expr) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        Token method = expr.method;
+        return (interpreter, env) -> {
+            FoxClass superclass = (FoxClass) env.getAt(depth, slot);
+            FoxInstance object = (FoxInstance) env.getAt(depth - 1, 0);
+            FoxFunction function = superclass.findMethod(method.symbol);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public Eval visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            NumberEval number = compileNumber(expr);
+            return (interpreter, env) -> Interpreter.box(number.eval(interpreter, env));
+        }
+        Eval right = compile(expr.right);
+        return (interpreter, env) -> !Interpreter.isTruthy(right.eval(interpreter, env));
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    private Eval variable(Token name, int depth, int slot) {
+        if (depth == Resolver.GLOBAL) {
+            return (interpreter, env) -> interpreter.globals.get(name);
+        }
+        return (interpreter, env) -> env.getAt(depth, slot);
+    }
+}
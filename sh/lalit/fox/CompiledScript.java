@@ -0,0 +1,44 @@
+package sh.lalit.fox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// source that's been through the front end once, made by FoxEngine.compile.
+// the tokens are gone and the resolved AST is kept, along with the lambdas
+// when the engine runs ClosureCompiler code, so running it again in any
+// context of the engine starts straight at the interpreter. the VM's
+// bytecode refers to the global slots of one VM, so each context compiles it
+// the first time it runs the script and keeps it for the runs after
+public final class CompiledScript {
+    final FoxEngine engine;
+    final List<Stmt> statements; // null if the source had errors
+    final ClosureCompiler.Exec program; // only with Mode.CLOSURES
+    // the messages of the errors in the source, reported again every time
+    // the script is run
+    final String errors;
+
+    CompiledScript(FoxEngine engine, List<Stmt> statements, ClosureCompiler.Exec program, String errors) {
+        this.engine = engine;
+        this.statements = statements;
+        this.program = program;
+        this.errors = errors;
+    }
+
+    public boolean hasErrors() {
+        return statements == null;
+    }
+
+    // writes the script as a Snapshot, which FoxEngine.load reads back
+    // without going through the front end
+    public void save(Path path) throws IOException {
+        if (statements == null) {
+            throw new IllegalStateException("a script with errors can't be saved");
+        }
+        try (OutputStream out = Files.newOutputStream(path)) {
+            Snapshot.write(statements, out);
+        }
+    }
+}
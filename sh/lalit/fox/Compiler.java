@@ -0,0 +1,719 @@
+package sh.lalit.fox;
+
+import java.util.List;
+
+// compiles the statements produced by Parser into bytecode for the VM.
+// Resolver has already rejected invalid programs, so the only errors reported
+// here are the limits of the bytecode format. every variable is resolved to a
+// stack slot, an upvalue or a global slot at compile time, the VM never looks
+// a name up while running
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_U16 = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        int depth; // -1 until the variable is initialized
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VMFunction function;
+        final FunctionType type;
+        final Local[] locals = new Local[MAX_LOCALS];
+        int localCount = 0;
+        final Upvalue[] upvalues = new Upvalue[MAX_UPVALUES];
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VMFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // slot zero holds the function being called, or `this` for methods
+            String name = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+            locals[localCount++] = new Local(name, 0);
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private final VM vm;
+    private final ErrorReporter errors;
+    private FunctionState current;
+    private ClassState currentClass;
+    private int line; // line of the token currently being compiled
+
+    Compiler(VM vm, ErrorReporter errors) {
+        this.vm = vm;
+        this.errors = errors;
+    }
+
+    // a statement nested deeper than the stack has room for is reported at
+    // the line compiling it had got to, and nothing after it is compiled
+    VMFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VMFunction(null), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            try {
+                compile(statement);
+            } catch (StackOverflowError e) {
+                errors.error(line, FoxEngine.TOO_DEEP);
+                return null;
+            }
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current, new VMFunction(stmt.name.lexeme), type);
+        state.function.generator = stmt.generator;
+        current = state;
+        beginScope();
+        for (Token param : stmt.params) {
+            state.function.arity++;
+            addLocal(param.lexeme);
+            markInitialized();
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+        current = state.enclosing;
+
+        line = stmt.name.line;
+        emitOp(OpCode.CLOSURE);
+        emitShort(makeConstant(state.function));
+        for (int i = 0; i < state.function.upvalueCount; i++) {
+            emitByte(state.upvalues[i].isLocal ? 1 : 0);
+            emitByte(state.upvalues[i].index);
+        }
+    }
+
+    // scopes
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        while (current.localCount > 0 && current.locals[current.localCount - 1].depth > current.scopeDepth) {
+            if (current.locals[current.localCount - 1].isCaptured) {
+                emitOp(OpCode.CLOSE_UPVALUE);
+            } else {
+                emitOp(OpCode.POP);
+            }
+            current.localCount--;
+        }
+    }
+
+    private void addLocal(String name) {
+        if (current.localCount == MAX_LOCALS) {
+            errors.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals[current.localCount++] = new Local(name, -1);
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) {
+            return;
+        }
+        current.locals[current.localCount - 1].depth = current.scopeDepth;
+    }
+
+    // locals are declared before their initializer is compiled, globals are
+    // defined after it, both leave the value where the variable lives
+    private void declareVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name.lexeme);
+        }
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitOp(OpCode.DEFINE_GLOBAL);
+        emitShort(vm.globalSlot(name.lexeme));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.localCount - 1; i >= 0; i--) {
+            if (state.locals[i].name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) {
+            return -1;
+        }
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals[local].isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        int count = state.function.upvalueCount;
+        for (int i = 0; i < count; i++) {
+            Upvalue upvalue = state.upvalues[i];
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (count == MAX_UPVALUES) {
+            errors.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues[count] = new Upvalue(index, isLocal);
+        return state.function.upvalueCount++;
+    }
+
+    private void namedVariable(Token name, boolean assign) {
+        line = name.line;
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) {
+            emitOp(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+            emitByte(arg);
+            return;
+        }
+        arg = resolveUpvalue(current, name.lexeme);
+        if (arg != -1) {
+            emitOp(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+            emitByte(arg);
+            return;
+        }
+        emitOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+        emitShort(vm.globalSlot(name.lexeme));
+    }
+
+    // emitting
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emitOp(byte op) {
+        chunk().write(op, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    private int makeConstant(Object value) {
+        int index = chunk().addConstant(value);
+        if (index > MAX_U16) {
+            errors.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void emitConstant(Object value) {
+        emitOp(OpCode.CONSTANT);
+        emitShort(makeConstant(value));
+    }
+
+    // emits a jump with a placeholder offset and returns where to patch it
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitByte(0xff);
+        emitByte(0xff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk().count - offset - 2;
+        if (jump > MAX_U16) {
+            errors.error(line, "Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+        int offset = chunk().count - loopStart + 2;
+        if (offset > MAX_U16) {
+            errors.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    // expressions
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        namedVariable(expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case PLUS:
+                emitOp(OpCode.ADD);
+                break;
+            case MINUS:
+                emitOp(OpCode.SUBTRACT);
+                break;
+            case STAR:
+                emitOp(OpCode.MULTIPLY);
+                break;
+            case SLASH:
+                emitOp(OpCode.DIVIDE);
+                break;
+            case GREATER:
+                emitOp(OpCode.GREATER);
+                break;
+            case GREATER_EQUAL:
+                emitOp(OpCode.GREATER_EQUAL);
+                break;
+            case LESS:
+                emitOp(OpCode.LESS);
+                break;
+            case LESS_EQUAL:
+                emitOp(OpCode.LESS_EQUAL);
+                break;
+            case EQUAL_EQUAL:
+                emitOp(OpCode.EQUAL);
+                break;
+            case BANG_EQUAL:
+                emitOp(OpCode.NOT_EQUAL);
+                break;
+            default:
+                // Interpreter evaluates unknown operators to nil
+                emitOp(OpCode.POP);
+                emitOp(OpCode.POP);
+                emitOp(OpCode.NIL);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(args) calls the method without creating a bound method
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+            line = expr.paren.line;
+            emitOp(tailCall(expr) ? OpCode.TAIL_INVOKE : OpCode.INVOKE);
+            emitShort(makeConstant(get.name.lexeme));
+            emitByte(expr.arguments.size());
+            return null;
+        }
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitOp(tailCall(expr) ? OpCode.TAIL_CALL : OpCode.CALL);
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    // a generator's frame is kept between calls, so it can't be replaced
+    private boolean tailCall(Expr.Call expr) {
+        return expr.tail && !current.function.generator;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line), false);
+        namedVariable(expr.keyword, false);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emitOp(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emitOp(OpCode.FALSE);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS:
+                emitOp(OpCode.NEGATE);
+                break;
+            case BANG:
+                emitOp(OpCode.NOT);
+                break;
+            default:
+                emitOp(OpCode.POP);
+                emitOp(OpCode.NIL);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, false);
+        return null;
+    }
+
+    // statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        emitOp(OpCode.CLASS);
+        emitShort(nameConstant);
+        defineVariable(stmt.name);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+        if (stmt.superclass != null) {
+            // the superclass stays on the stack as a local named "super" that
+            // the methods capture, the same way Interpreter wraps them in an
+            // environment holding "super"
+            compile(stmt.superclass);
+            beginScope();
+            addLocal("super");
+            markInitialized();
+            namedVariable(stmt.name, false);
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(stmt.name, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitOp(OpCode.METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        emitOp(OpCode.POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        discard(stmt.expression);
+        return null;
+    }
+
+    // compiles expr for what it does, leaving nothing on the stack
+    private void discard(Expr expr) {
+        if (expr instanceof Expr.Assign && addToLocal((Expr.Assign) expr)) {
+            return;
+        }
+        compile(expr);
+        emitOp(OpCode.POP);
+    }
+
+    // `i = i + x;` with i a local and x a literal or a variable, which
+    // can't change i while it's evaluated, is compiled to an ADD_LOCAL.
+    // returns false for any other assignment
+    private boolean addToLocal(Expr.Assign expr) {
+        if (!(expr.value instanceof Expr.Binary)) {
+            return false;
+        }
+        Expr.Binary sum = (Expr.Binary) expr.value;
+        if (sum.operator.type != TokenType.PLUS
+                || !(sum.left instanceof Expr.Variable)
+                || !((Expr.Variable) sum.left).name.lexeme.equals(expr.name.lexeme)
+                || !(sum.right instanceof Expr.Literal || sum.right instanceof Expr.Variable)) {
+            return false;
+        }
+        int slot = resolveLocal(current, expr.name.lexeme);
+        if (slot == -1) {
+            return false;
+        }
+        compile(sum.right);
+        line = sum.operator.line;
+        emitOp(OpCode.ADD_LOCAL);
+        emitByte(slot);
+        return true;
+    }
+
+    // compiles the condition of an if or a loop and a jump for when it's
+    // false, returning where to patch the jump. a comparison is fused with
+    // the jump, which leaves nothing on the stack, so the caller only pops
+    // the condition if it isn't one
+    private int conditionJump(Expr condition) {
+        byte op = comparison(condition);
+        if (op == -1) {
+            compile(condition);
+            int jump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            return jump;
+        }
+        Expr.Binary binary = (Expr.Binary) condition;
+        compile(binary.left);
+        compile(binary.right);
+        line = binary.operator.line;
+        emitOp(OpCode.JUMP_UNLESS);
+        emitByte(op);
+        emitByte(0xff);
+        emitByte(0xff);
+        return chunk().count - 2;
+    }
+
+    // the opcode of a comparison, -1 if expr isn't one
+    private static byte comparison(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) {
+            return -1;
+        }
+        switch (((Expr.Binary) expr).operator.type) {
+            case GREATER:
+                return OpCode.GREATER;
+            case GREATER_EQUAL:
+                return OpCode.GREATER_EQUAL;
+            case LESS:
+                return OpCode.LESS;
+            case LESS_EQUAL:
+                return OpCode.LESS_EQUAL;
+            case EQUAL_EQUAL:
+                return OpCode.EQUAL;
+            case BANG_EQUAL:
+                return OpCode.NOT_EQUAL;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        // a local function can refer to itself, so it's initialized before
+        // the body is compiled
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int thenJump = conditionJump(stmt.condition);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        if (comparison(stmt.condition) == -1) {
+            emitOp(OpCode.POP);
+        }
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitOp(OpCode.NIL);
+        } else {
+            compile(stmt.value);
+        }
+        emitOp(OpCode.YIELD);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().count;
+        int exitJump = conditionJump(stmt.condition);
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            discard(stmt.increment);
+        }
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        if (comparison(stmt.condition) == -1) {
+            emitOp(OpCode.POP);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,9 @@
+package sh.lalit.fox;
+
+// how a statement finished running. a return statement leaves its value in
+// Interpreter.returnValue and completes with RETURN, which every enclosing
+// block and loop passes on until it reaches the call in FoxFunction.invoke
+enum Completion {
+    NORMAL,
+    RETURN
+}
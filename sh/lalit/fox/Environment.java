@@ -1,32 +1,43 @@
 package sh.lalit.fox;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// the global environment is looked up by name, since globals can be used
+// before they're declared. every other environment is a fixed size frame whose
+// slots were handed out by the Resolver in declaration order
 public class Environment {
+    // stands in for a global holding nil, which a ConcurrentHashMap can't hold
+    private static final Object NIL = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // shared by the interpreters of every task, see FoxTask
+    private final Map<Symbol, Object> values;
+    private final Object[] slots;
+    private int count = 0;
 
     public Environment() {
         this.enclosing = null;
+        this.values = new ConcurrentHashMap<>();
+        this.slots = null;
     }
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (enclosing != null) {
-            return enclosing.get(name);
+        Object value = values.get(name.symbol);
+        if (value != null) {
+            return value == NIL ? null : value;
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
     Environment ancestor(int distance) {
@@ -38,22 +49,29 @@ public class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        if (values.replace(name.symbol, value == null ? NIL : value) != null) {
             return;
         }
         throw new RuntimeError(name, "Undefined variable " + name.lexeme + ".");
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    // locals are defined in the same order the Resolver declared them,
+    // so the next free slot is always the variable's slot
+    void define(Symbol name, Object value) {
+        if (values != null) {
+            values.put(name, value == null ? NIL : value);
+        } else {
+            slots[count++] = value;
+        }
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    // lets a loop run its body in the same frame every iteration. the
+    // Resolver guarantees each slot is defined again before it's read
+    void reset() {
+        count = 0;
     }
 }
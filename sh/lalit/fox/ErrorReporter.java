@@ -0,0 +1,46 @@
+package sh.lalit.fox;
+
+import static sh.lalit.fox.TokenType.*;
+
+import java.io.PrintStream;
+
+// where the errors of a script go. every FoxContext has its own, so scripts
+// running side by side in one JVM don't see each other's errors
+class ErrorReporter {
+    private final PrintStream err;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    ErrorReporter(PrintStream err) {
+        this.err = err;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void report(int line, String where, String message) {
+        err.println(
+                "[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    void error(Token token, String message) {
+        if (token.type == EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    // the messages of errors reported earlier, see CompiledScript
+    void replay(String messages) {
+        err.print(messages);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        err.println(error.getMessage() + "\n[line " + error.line + "]");
+        hadRuntimeError = true;
+    }
+}
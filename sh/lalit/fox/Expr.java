@@ -30,6 +30,8 @@ abstract class Expr {
     }
     final Token name;
     final  Expr value;
+    int depth = Resolver.GLOBAL;
+    int slot;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -45,6 +47,7 @@ abstract class Expr {
     final Expr left;
     final  Token operator;
     final  Expr right;
+    Specialization state = Specialization.UNINITIALIZED;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -60,6 +63,7 @@ abstract class Expr {
     final Expr callee;
     final  Token paren;
     final  List<Expr> arguments;
+    boolean tail;
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -73,6 +77,7 @@ abstract class Expr {
     }
     final Expr object;
     final  Token name;
+    InlineCache cache;
   }
   static class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
@@ -88,6 +93,7 @@ abstract class Expr {
     final Expr object;
     final  Token name;
     final  Expr value;
+    InlineCache cache;
   }
   static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -101,6 +107,8 @@ abstract class Expr {
     }
     final Token keyword;
     final  Token method;
+    int depth = Resolver.GLOBAL;
+    int slot;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -112,6 +120,8 @@ abstract class Expr {
     return visitor.visitThisExpr(this);
     }
     final Token keyword;
+    int depth = Resolver.GLOBAL;
+    int slot;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -173,6 +183,8 @@ abstract class Expr {
     return visitor.visitVariableExpr(this);
     }
     final Token name;
+    int depth = Resolver.GLOBAL;
+    int slot;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
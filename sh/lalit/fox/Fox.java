@@ -1,91 +1,122 @@
 package sh.lalit.fox;
 
-import static sh.lalit.fox.TokenType.*;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
+// the command line: runs a script, or a prompt, in a FoxContext of its own.
+// programs embedding fox use FoxEngine and FoxContext directly
 public class Fox {
 
-    private static final Interpreter interpreter = new Interpreter();
-    public static boolean hadError = false;
-    public static boolean hadRuntimeError = false;
-
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: fox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        List<String> files = new ArrayList<>();
+        FoxEngine.Mode mode = FoxEngine.Mode.INTERPRETER;
+        int maxDepth = Interpreter.MAX_DEPTH;
+        boolean dumpAst = false;
+        String snapshot = null; // where to save the script instead of running it
+        boolean stream = false; // run each declaration as soon as it's parsed
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                mode = FoxEngine.Mode.VM;
+            } else if (arg.startsWith("--max-depth=")) {
+                try {
+                    maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+                } catch (NumberFormatException e) {
+                    maxDepth = 0;
+                }
+                if (maxDepth <= 0) {
+                    usage();
+                }
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = arg.substring("--snapshot=".length());
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--closures")) {
+                mode = FoxEngine.Mode.CLOSURES;
+            } else if (arg.equals("--jit")) {
+                mode = FoxEngine.Mode.JIT;
+            } else {
+                files.add(arg);
+            }
+        }
+        // the AST goes to the same place as the script's output
+        FoxEngine engine = new FoxEngine(mode, maxDepth, FoxEngine.CACHE_SIZE, dumpAst ? System.out : null);
+        FoxContext context = engine.newContext();
+        if (files.size() > 1 || (snapshot != null || stream) && files.isEmpty() || snapshot != null && stream) {
+            usage();
+        } else if (stream) {
+            context.stream(Paths.get(files.get(0)));
+            exit(context);
+        } else if (snapshot != null) {
+            saveFile(engine, context, files.get(0), snapshot);
+        } else if (files.size() == 1) {
+            runFile(engine, context, files.get(0));
         } else {
-            runPrompt();
+            runPrompt(context);
+        }
+    }
+
+    private static void usage() {
+        System.out.println(
+                "Usage: fox [--vm | --jit | --closures] [--max-depth=N] [--dump-ast] [--snapshot=file | --stream] [script]");
+        System.exit(64);
+    }
+
+    // the script is either source or a snapshot saved with --snapshot
+    private static CompiledScript load(FoxEngine engine, Path path) throws IOException {
+        if (Snapshot.matches(path)) {
+            try {
+                return engine.load(path);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(65);
+            }
+        }
+        return engine.compile(path);
+    }
+
+    private static void saveFile(FoxEngine engine, FoxContext context, String path, String snapshot)
+            throws IOException {
+        CompiledScript script = load(engine, Paths.get(path));
+        if (script.hasErrors()) {
+            // reports the errors
+            context.run(script);
+            System.exit(65);
         }
+        script.save(Paths.get(snapshot));
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError)
+    private static void runFile(FoxEngine engine, FoxContext context, String path) throws IOException {
+        context.run(load(engine, Paths.get(path)));
+        exit(context);
+    }
+
+    private static void exit(FoxContext context) {
+        if (context.hadError())
             System.exit(65);
-        if (hadRuntimeError)
+        if (context.hadRuntimeError())
             System.exit(70);
     }
 
-    private static void runPrompt() throws IOException {
+    private static void runPrompt(FoxContext context) throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        FoxSession session = context.newSession();
         for (;;) {
-            System.out.print("> ");
+            System.out.print(session.needsMore() ? "... " : "> ");
             String line = reader.readLine();
             if (line == null) {
                 break;
             } else if (line.equals("exit")) {
                 System.exit(64);
             }
-            run(line);
-            hadError = false;
-        }
-    }
-
-    private static void run(String src) {
-        Scanner scanner = new Scanner(src);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-        if (hadError)
-            return;
-        Resolver resolver = new Resolver(interpreter);
-        if (hadError)
-            return;
-        resolver.resolve(statements);
-        interpreter.interpret(statements);
-    }
-
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
-
-    static void error(Token token, String message) {
-        if (token.type == EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            session.feed(line);
         }
     }
-
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
-    }
 }
@@ -1,27 +1,33 @@
 package sh.lalit.fox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class FoxClass implements FoxCallable {
     final String name;
-    private final Map<String, FoxFunction> methods;
+    // every method the class responds to, inherited ones included, so a
+    // lookup never walks the superclass chain. built once and never changed
+    private final Map<Symbol, FoxFunction> methods;
+    private final FoxFunction initializer;
     final FoxClass superclass;
+    // number of fields new instances are allocated with, see FoxInstance.write
+    int instanceSize = 0;
 
-    FoxClass(String name, FoxClass superclass, Map<String, FoxFunction> methods) {
+    FoxClass(String name, FoxClass superclass, Map<Symbol, FoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
-    }
-
-    FoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        Map<Symbol, FoxFunction> flattened = new HashMap<>();
         if (superclass != null) {
-            return superclass.findMethod(name);
+            flattened.putAll(superclass.methods);
         }
-        return null;
+        flattened.putAll(methods);
+        this.methods = Map.copyOf(flattened);
+        this.initializer = this.methods.get(Symbol.INIT);
+    }
+
+    FoxFunction findMethod(Symbol name) {
+        return methods.get(name);
     }
 
     @Override
@@ -31,7 +37,6 @@ public class FoxClass implements FoxCallable {
 
     @Override
     public int arity() {
-        FoxFunction initializer = findMethod("init");
         if (initializer == null) {
             return 0;
         }
@@ -41,10 +46,9 @@ public class FoxClass implements FoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         FoxInstance instance = new FoxInstance(this);
-        FoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
-}
\ No newline at end of file
+}
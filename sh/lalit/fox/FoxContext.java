@@ -0,0 +1,172 @@
+package sh.lalit.fox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+// one script's worth of state: its globals, the interpreter or VM running it
+// and where its output and errors go. what contexts share through their
+// FoxEngine doesn't change while they run, so contexts can run on as many
+// threads as there are contexts. a context runs one piece of source at a
+// time, and later runs see the globals earlier ones defined
+public final class FoxContext {
+    private final FoxEngine engine;
+    final ErrorReporter errors;
+    private final Interpreter interpreter; // null with Mode.VM
+    private final VM vm; // only set with Mode.VM
+    // the bytecode of the scripts this context has run, which is only good
+    // for its own VM's global slots. only with Mode.VM
+    private final Map<CompiledScript, VMFunction> bytecode = new WeakHashMap<>();
+
+    FoxContext(FoxEngine engine, PrintStream out, PrintStream err) {
+        this.engine = engine;
+        this.errors = new ErrorReporter(err);
+        Map<String, FoxCallable> natives = engine.natives();
+        if (engine.mode == FoxEngine.Mode.VM) {
+            interpreter = null;
+            vm = new VM(engine.maxDepth, out, errors);
+            for (Map.Entry<String, FoxCallable> entry : natives.entrySet()) {
+                vm.define(entry.getKey(), entry.getValue());
+            }
+        } else {
+            vm = null;
+            interpreter = new Interpreter(out, errors);
+            interpreter.maxDepth = engine.maxDepth;
+            interpreter.jit = engine.mode == FoxEngine.Mode.JIT;
+            for (Map.Entry<String, FoxCallable> entry : natives.entrySet()) {
+                interpreter.globals.define(Symbol.of(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    // returns false if the source had an error or stopped with one
+    public boolean run(String source) {
+        return run(engine.compile(source));
+    }
+
+    // the script has to come from this context's engine
+    public synchronized boolean run(CompiledScript script) {
+        if (script.engine != engine) {
+            throw new IllegalArgumentException("script was compiled by another engine");
+        }
+        errors.hadError = false;
+        errors.hadRuntimeError = false;
+        if (script.statements == null) {
+            errors.replay(script.errors);
+            return false;
+        }
+        onStack(() -> {
+            if (vm == null) {
+                execute(script.statements, script.program);
+                return;
+            }
+            VMFunction function = bytecode.get(script);
+            if (function == null) {
+                function = compile(script.statements);
+                if (function == null)
+                    return;
+                bytecode.put(script, function);
+            }
+            vm.interpret(function);
+        });
+        return !errors.hadError && !errors.hadRuntimeError;
+    }
+
+    // program is the statements compiled by ClosureCompiler, if they have
+    // been. runs on the thread from onStack
+    private void execute(List<Stmt> statements, ClosureCompiler.Exec program) {
+        if (vm != null) {
+            VMFunction function = compile(statements);
+            if (function != null) {
+                vm.interpret(function);
+            }
+        } else if (engine.mode == FoxEngine.Mode.CLOSURES) {
+            ClosureCompiler.run(program != null ? program : ClosureCompiler.compile(statements), interpreter);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    // the bytecode for statements, null if errors were reported
+    private VMFunction compile(List<Stmt> statements) {
+        VMFunction function = new Compiler(vm, errors).compile(statements);
+        return errors.hadError ? null : function;
+    }
+
+    // runs the UTF-8 script in a file a top-level declaration at a time, each
+    // one as soon as it's been parsed, so a long script starts running right
+    // away and only the declaration being run is in memory. the script isn't
+    // cached. nothing runs after a compile error, though the rest of the file
+    // is still parsed to report any more of them
+    public synchronized boolean stream(Path path) throws IOException {
+        errors.hadError = false;
+        errors.hadRuntimeError = false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Parser parser = new Parser(new Scanner(source, errors).scanOnDemand(), errors);
+            onStack(() -> {
+                while (parser.hasNext() && !errors.hadRuntimeError) {
+                    Stmt statement = parser.next();
+                    if (errors.hadError)
+                        continue;
+                    List<Stmt> statements = engine.resolve(List.of(statement), errors);
+                    if (statements != null) {
+                        execute(statements, null);
+                    }
+                }
+            });
+        }
+        return !errors.hadError && !errors.hadRuntimeError;
+    }
+
+    // a session that runs input a line at a time in this context, like the
+    // prompt does
+    public FoxSession newSession() {
+        return new FoxSession(this);
+    }
+
+    // resolves and runs statements parsed by a FoxSession. the error flags
+    // are left as the session set them
+    synchronized void run(List<Stmt> parsed) {
+        onStack(() -> {
+            List<Stmt> statements = engine.resolve(parsed, errors);
+            if (statements != null) {
+                execute(statements, null);
+            }
+        });
+    }
+
+    // whether the last run had a compile error
+    public boolean hadError() {
+        return errors.hadError;
+    }
+
+    // whether the last run stopped with a runtime error
+    public boolean hadRuntimeError() {
+        return errors.hadRuntimeError;
+    }
+
+    // the tree-walking engines recurse on the java stack, so they run on a
+    // thread whose stack has room for maxDepth calls. a StackOverflowError
+    // then only happens if the calls are unusually deep inside expressions,
+    // and is reported as the same "Stack overflow." error. the VM doesn't
+    // recurse but compiling for it does, so it runs there too
+    private void onStack(Runnable program) {
+        onStack(() -> {
+            program.run();
+            return null;
+        });
+    }
+
+    // so does the front end, see FoxSession
+    <T> T onStack(Supplier<T> task) {
+        return engine.onStack(task);
+    }
+}
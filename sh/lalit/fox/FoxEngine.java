@@ -0,0 +1,199 @@
+package sh.lalit.fox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+// what a program embedding fox starts from. an engine holds the settings and
+// the natives every FoxContext made from it shares, and nothing a running
+// script changes, so one engine can hand out any number of contexts to run
+// scripts side by side in the same JVM
+public final class FoxEngine {
+    // which engine runs the code, see the flags in Fox
+    public enum Mode {
+        INTERPRETER,
+        CLOSURES,
+        JIT,
+        VM
+    }
+
+    // how many bytes of source the compiled scripts kept for reuse can add
+    // up to, see ScriptCache
+    public static final long CACHE_SIZE = 16 * 1024 * 1024;
+    // the error for source nested deeper than the front end's stack has room
+    // for, which it reports instead of throwing the StackOverflowError
+    static final String TOO_DEEP = "Too much nesting.";
+
+    final Mode mode;
+    final int maxDepth;
+    // where the AST is printed before and after Optimizer, null if it isn't
+    private final PrintStream astDump;
+    private final Map<String, FoxCallable> natives = new LinkedHashMap<>();
+    private final ScriptCache cache;
+    // the threads the front end and the contexts' scripts run on, with a
+    // stack of Threads.stackSize(maxDepth)
+    private final ExecutorService stacks;
+
+    public FoxEngine() {
+        this(Mode.INTERPRETER, Interpreter.MAX_DEPTH);
+    }
+
+    // maxDepth is how many calls can be running at once before a
+    // "Stack overflow." error, like --max-depth
+    public FoxEngine(Mode mode, int maxDepth) {
+        this(mode, maxDepth, CACHE_SIZE);
+    }
+
+    // cacheSize is the number of bytes of source the cache of compiled
+    // scripts can hold, 0 to compile every time
+    public FoxEngine(Mode mode, int maxDepth, long cacheSize) {
+        this(mode, maxDepth, cacheSize, null);
+    }
+
+    FoxEngine(Mode mode, int maxDepth, long cacheSize, PrintStream astDump) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("maxDepth must be positive");
+        }
+        this.mode = mode;
+        this.maxDepth = maxDepth;
+        this.astDump = astDump;
+        this.stacks = Threads.stackPool(Threads.stackSize(maxDepth));
+        // a cached script isn't dumped again
+        this.cache = cacheSize > 0 && astDump == null ? new ScriptCache(cacheSize) : null;
+        natives.put("clock", Interpreter.clock);
+        // a task runs in an interpreter of its own, which the VM doesn't have
+        if (mode != Mode.VM) {
+            natives.put("spawn", Interpreter.spawn);
+            natives.put("await", Interpreter.await);
+        }
+    }
+
+    // makes function a global of every context created after this. on the
+    // VM natives are called with a null interpreter
+    public synchronized void define(String name, FoxCallable function) {
+        natives.put(name, function);
+    }
+
+    synchronized Map<String, FoxCallable> natives() {
+        return new LinkedHashMap<>(natives);
+    }
+
+    // a context whose print statements write to System.out and whose errors
+    // go to System.err
+    public FoxContext newContext() {
+        return newContext(System.out, System.err);
+    }
+
+    public FoxContext newContext(PrintStream out, PrintStream err) {
+        return new FoxContext(this, out, err);
+    }
+
+    // the script for source, from the cache if the same source has been
+    // compiled before. it can be run any number of times, by any context of
+    // this engine, see FoxContext.run
+    public CompiledScript compile(String source) {
+        return compile(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // the script for the UTF-8 source in a file. the file is mapped and
+    // scanned where it is, without reading it into a String first
+    public CompiledScript compile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return compile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private CompiledScript compile(ByteBuffer source) {
+        ByteBuffer key = cache != null ? ScriptCache.key(source) : null;
+        CompiledScript script = key != null ? cache.get(key) : null;
+        if (script != null) {
+            return script;
+        }
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        ErrorReporter errors = new ErrorReporter(new PrintStream(messages, true, StandardCharsets.UTF_8));
+        // the front end recurses as deep as the source is nested, so it runs
+        // on a stack like the one the script will run on
+        script = onStack(() -> {
+            List<Stmt> statements = compile(source, errors);
+            ClosureCompiler.Exec program = null;
+            try {
+                if (statements != null && mode == Mode.CLOSURES) {
+                    program = ClosureCompiler.compile(statements);
+                }
+            } catch (StackOverflowError e) {
+                errors.error(0, TOO_DEEP);
+                statements = null;
+            }
+            return new CompiledScript(this, statements, program, messages.toString(StandardCharsets.UTF_8));
+        });
+        if (key != null) {
+            cache.put(key, script, source.remaining());
+        }
+        return script;
+    }
+
+    // runs task on one of the engine's big-stack threads, see FoxContext
+    <T> T onStack(Supplier<T> task) {
+        return Threads.onStack(stacks, task);
+    }
+
+    // reads a script saved with CompiledScript.save. the file is mapped and
+    // the nodes are read straight out of it
+    public CompiledScript load(Path path) throws IOException {
+        List<Stmt> statements;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            statements = Snapshot.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        ClosureCompiler.Exec program = mode == Mode.CLOSURES ? ClosureCompiler.compile(statements) : null;
+        return new CompiledScript(this, statements, program, "");
+    }
+
+    // scans, parses, resolves and optimises source. the statements are
+    // returned ready to run, or null if errors were reported
+    private List<Stmt> compile(ByteBuffer source, ErrorReporter errors) {
+        Scanner scanner = new Scanner(source, errors);
+        TokenBuffer tokens = scanner.scanTokens();
+        Parser parser = new Parser(tokens, errors);
+        List<Stmt> statements = parser.parse();
+        if (errors.hadError)
+            return null;
+        return resolve(statements, errors);
+    }
+
+    // resolves and optimises parsed statements, null if errors were reported
+    List<Stmt> resolve(List<Stmt> statements, ErrorReporter errors) {
+        try {
+            return resolveAndOptimize(statements, errors);
+        } catch (StackOverflowError e) {
+            errors.error(0, TOO_DEEP);
+            return null;
+        }
+    }
+
+    private List<Stmt> resolveAndOptimize(List<Stmt> statements, ErrorReporter errors) {
+        Resolver resolver = new Resolver(errors);
+        resolver.resolve(statements);
+        if (errors.hadError)
+            return null;
+        if (astDump != null) {
+            astDump.print("before:\n" + new AstPrinter().print(statements));
+        }
+        statements = new Optimizer().optimize(statements);
+        // the Optimizer can take a scope apart, so slots and depths are worked out again
+        new Resolver(errors).resolve(statements);
+        if (astDump != null) {
+            astDump.print("after:\n" + new AstPrinter().print(statements));
+        }
+        return statements;
+    }
+}
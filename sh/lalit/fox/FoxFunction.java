@@ -6,20 +6,33 @@ public class FoxFunction implements FoxCallable {
     private final Stmt.Function declaration;
     private final Environment closure;
     private final boolean isInitializer;
+    private final FoxInstance receiver; // set for methods returned by bind
+    // the body compiled by ClosureCompiler, null when it's interpreted
+    private final ClosureCompiler.Exec body;
 
     FoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null, null);
+    }
+
+    FoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, ClosureCompiler.Exec body) {
+        this(declaration, closure, isInitializer, null, body);
+    }
+
+    private FoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+            FoxInstance receiver, ClosureCompiler.Exec body) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
+        this.body = body;
     }
 
-    // calling bind creates a new thin layer of environment
-    // between the function and it's closure which only stores
-    // the value of `this`. bind is not called for regular functions outside classes
+    // a method keeps `this` in the first slot of its own frame, so binding
+    // only has to remember the instance. bind is not called for regular
+    // functions outside classes, and is only needed when a method is used as
+    // a value. calls like obj.method() go straight to invoke
     FoxFunction bind(FoxInstance instance) {
-        Environment env = new Environment(closure);
-        env.define("this", instance);
-        return new FoxFunction(declaration, env, isInitializer);
+        return new FoxFunction(declaration, closure, isInitializer, instance, body);
     }
 
     @Override
@@ -29,20 +42,81 @@ public class FoxFunction implements FoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment env = new Environment(closure);
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // receiver is null for functions and the instance for methods. calls in
+    // tail position come back as a TailCall and are made here, one after
+    // another, so recursion through them doesn't grow the Java stack
+    Object invoke(Interpreter interpreter, FoxInstance receiver, List<Object> arguments) {
+        return complete(interpreter, run(interpreter, receiver, arguments));
+    }
+
+    // makes the tail calls a function's result asks for
+    private static Object complete(Interpreter interpreter, Object value) {
+        while (value instanceof TailCall) {
+            TailCall call = (TailCall) value;
+            value = call.function.run(interpreter, call.receiver, call.arguments);
+        }
+        return value;
+    }
+
+    // a call to this function that's been checked but not made yet
+    TailCall tailCall(List<Object> arguments) {
+        return new TailCall(this, receiver, arguments);
+    }
+
+    static final class TailCall {
+        final FoxFunction function;
+        final FoxInstance receiver;
+        final List<Object> arguments;
+
+        TailCall(FoxFunction function, FoxInstance receiver, List<Object> arguments) {
+            this.function = function;
+            this.receiver = receiver;
+            this.arguments = arguments;
+        }
+    }
+
+    private Object run(Interpreter interpreter, FoxInstance receiver, List<Object> arguments) {
+        // the call count and compiled code are kept on the declaration, so
+        // they're shared by every closure created from it
+        JitCode compiled = declaration.compiled;
+        if (compiled == null && interpreter.jit && ++declaration.calls == Jit.CALL_THRESHOLD) {
+            compiled = declaration.compiled = Jit.compile(declaration, receiver != null);
+        }
+        if (compiled != null) {
+            Object value = compiled.run(interpreter, closure, receiver, arguments);
+            return isInitializer ? receiver : value;
+        }
+        Environment env = new Environment(closure, declaration.slots);
+        if (receiver != null) {
+            env.define(Symbol.THIS, receiver);
+        }
         for (int i = 0; i < declaration.params.size(); i++) {
-            env.define(declaration.params.get(i).lexeme, arguments.get(i));
+            env.define(declaration.params.get(i).symbol, arguments.get(i));
         }
-        try {
-            interpreter.executeBlock(declaration.body, env);
-        } catch (Return returnValue) {
-            if (isInitializer) {
-                return closure.getAt(0, "this");
-            }
-            return returnValue.value;
+        if (declaration.generator) {
+            // the body runs a piece at a time, each time the generator is
+            // called. what it returns is dropped, but a tail call still runs
+            Interpreter own = interpreter.fork();
+            return new FoxGenerator(() -> {
+                Completion completion = body != null ? body.exec(own, env) : own.executeBlock(declaration.body, env);
+                if (completion == Completion.RETURN) {
+                    Object value = own.returnValue;
+                    own.returnValue = null;
+                    complete(own, value);
+                }
+            }, interpreter.maxDepth);
         }
+        Completion completion = body != null ? body.exec(interpreter, env) : interpreter.executeBlock(declaration.body, env);
         if (isInitializer) {
-            return closure.getAt(0, "this");
+            return receiver;
+        }
+        if (completion == Completion.RETURN) {
+            Object value = interpreter.returnValue;
+            interpreter.returnValue = null;
+            return value;
         }
         return null;
     }
@@ -51,4 +125,4 @@ public class FoxFunction implements FoxCallable {
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
     }
-}
\ No newline at end of file
+}
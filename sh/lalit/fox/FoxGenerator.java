@@ -0,0 +1,204 @@
+package sh.lalit.fox;
+
+import java.lang.ref.Cleaner;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// what calling a generator function returns. every call runs the function's
+// body up to its next yield and returns the value yielded. once the body has
+// finished, every call returns nil.
+//
+// the body runs on a thread of its own (see Threads) so it can stop in the
+// middle of the interpreter's recursion, with an interpreter of its own so it
+// doesn't matter which task calls it. the caller and the body take turns, only
+// one of them runs at a time.
+//
+// the body's thread only holds on to the Channel between the two, not to the
+// generator, so a generator the script has dropped before its body finished
+// can be collected. a Cleaner then stops the body where it's waiting, and its
+// thread ends
+final class FoxGenerator implements FoxCallable {
+    // stand ins for nil, which a SynchronousQueue can't hold, for the end of
+    // the body and for a generator that's been dropped
+    private static final Object NIL = new Object();
+    private static final Object DONE = new Object();
+    private static final Object STOP = new Object();
+    private static final ThreadLocal<Channel> current = new ThreadLocal<>();
+    private static final Cleaner cleaner = Cleaner.create();
+    // bodies whose thread hasn't ended. a thread takes memory the garbage
+    // collector doesn't see, so past gcThreshold of them a collection is asked
+    // for to find the generators that have been dropped
+    private static final AtomicInteger bodies = new AtomicInteger();
+    private static volatile int gcThreshold = 1024;
+
+    private final Channel channel;
+    private final int maxDepth;
+    private boolean started = false;
+    private boolean finished = false;
+    // checked by Interpreter.call, the body can't call itself. other tasks
+    // calling it at the same time wait their turn
+    volatile boolean running = false;
+
+    FoxGenerator(Runnable body, int maxDepth) {
+        this.channel = new Channel(body);
+        this.maxDepth = maxDepth;
+    }
+
+    private static final class Channel implements Runnable {
+        final Runnable body;
+        final SynchronousQueue<Object> resumes = new SynchronousQueue<>();
+        final SynchronousQueue<Object> results = new SynchronousQueue<>();
+        // set by the body's thread before it hands over its last result
+        volatile boolean done = false;
+
+        Channel(Runnable body) {
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            current.set(this);
+            Object result = DONE;
+            try {
+                body.run();
+            } catch (Stopped e) {
+                return;
+            } catch (RuntimeException | Error e) {
+                result = new Failure(e);
+            } finally {
+                bodies.decrementAndGet();
+            }
+            done = true;
+            put(results, result);
+        }
+    }
+
+    // run by the cleaner once the generator can't be called any more. the
+    // body is then waiting for a resume, or about to, unless it's finished
+    private static final class Stop implements Runnable {
+        private final Channel channel;
+
+        Stop(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            if (!channel.done) {
+                put(channel.resumes, STOP);
+            }
+        }
+    }
+
+    // thrown by yield in a body that's been stopped, unwinding it
+    private static final class Stopped extends Error {
+        private static final long serialVersionUID = 1L;
+
+        Stopped() {
+            super(null, null, false, false);
+        }
+    }
+
+    // an error the body threw, to be rethrown by the caller
+    private static final class Failure {
+        final Throwable cause; // a RuntimeException or an Error
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    @Override
+    public int arity() {
+        return 0;
+    }
+
+    @Override
+    public synchronized Object call(Interpreter interpreter, List<Object> arguments) {
+        if (finished) {
+            return null;
+        }
+        running = true;
+        if (!started) {
+            started = true;
+            int count = bodies.incrementAndGet();
+            if (count > gcThreshold) {
+                System.gc();
+                gcThreshold = 2 * count;
+            } else if (count < gcThreshold / 4 && gcThreshold > 1024) {
+                gcThreshold /= 2;
+            }
+            cleaner.register(this, new Stop(channel));
+            Threads.newThread("fox-generator", Threads.stackSize(maxDepth), channel).start();
+        } else {
+            put(channel.resumes, NIL);
+        }
+        Object result = take(channel.results);
+        running = false;
+        if (result == DONE) {
+            finished = true;
+            return null;
+        }
+        if (result instanceof Failure) {
+            finished = true;
+            Throwable cause = ((Failure) result).cause;
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+        return result == NIL ? null : result;
+    }
+
+    // called on the body's thread by a yield statement, returns when the
+    // generator is called again
+    static void yield(Object value) {
+        Channel channel = current.get();
+        put(channel.results, value == null ? NIL : value);
+        if (take(channel.resumes) == STOP) {
+            throw new Stopped();
+        }
+    }
+
+    // the hand offs can't be given up halfway, an interrupt is kept for later
+    private static Object take(SynchronousQueue<Object> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void put(SynchronousQueue<Object> queue, Object value) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(value);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<generator>";
+    }
+}
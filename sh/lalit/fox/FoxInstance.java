@@ -1,35 +1,48 @@
 package sh.lalit.fox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class FoxInstance {
-    private FoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final FoxClass klass;
+    // fields live in values at the index given by the shape. reads and writes
+    // go through the inline caches of Get and Set nodes, see Interpreter.
+    // tasks can share an instance, so writes take its lock, and a new values
+    // is always stored before the shape that needs it. a reader that reads the
+    // shape first then never finds values too short for it
+    volatile Shape shape = Shape.EMPTY;
+    Object[] values;
 
     FoxInstance(FoxClass klass) {
         this.klass = klass;
+        this.values = new Object[klass.instanceSize];
     }
 
     public String toString() {
         return klass.name + " instance";
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // stores value in the field named name, which entry was looked up for. if
+    // another task has changed the shape since, the field is looked up again
+    // so neither task's field is lost
+    synchronized void write(InlineCache entry, Symbol name, Object value) {
+        int index = entry.index;
+        Shape shape = entry.transition;
+        if (this.shape != entry.shape) {
+            index = this.shape.indexOf(name);
+            shape = this.shape;
+            if (index < 0) {
+                index = shape.size();
+                shape = shape.with(name);
+            }
         }
-
-        FoxFunction method = klass.findMethod(name.lexeme);
-        // if a valid method is accessed via a getter,
-        // `this` is first defined for the requested method and then is returned
-        if (method != null)
-            return method.bind(this);
-
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
-    }
-
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        if (index >= values.length) {
+            values = Arrays.copyOf(values, shape.size());
+            // instances of a class tend to end up with the same fields
+            if (klass.instanceSize < shape.size()) {
+                klass.instanceSize = shape.size();
+            }
+        }
+        values[index] = value;
+        this.shape = shape;
     }
 }
@@ -0,0 +1,92 @@
+package sh.lalit.fox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// input typed at a prompt, fed to a FoxContext a line at a time. a line that
+// ends in the middle of a declaration, like the first line of a function,
+// is kept until a later line completes it. each line is scanned once onto
+// the tokens of the input still waiting, which are parsed again only when
+// the brackets in them balance. complete input runs straight away and is
+// dropped, nothing goes into the engine's cache, so a session that runs for
+// days only holds its globals and the lines it's waiting on
+public final class FoxSession {
+    private final FoxContext context;
+    private TokenBuffer tokens; // of the input waiting to run, null if there's none
+    private int depth = 0; // how many brackets the waiting input leaves open
+    private int line = 0;
+
+    FoxSession(FoxContext context) {
+        this.context = context;
+    }
+
+    // whether the input so far stops in the middle of a declaration, which
+    // the prompt shows with "... ". an empty line runs the input anyway, so
+    // its errors are reported
+    public boolean needsMore() {
+        return tokens != null;
+    }
+
+    // returns false if the line completed input that had an error or
+    // stopped with one
+    public synchronized boolean feed(String input) {
+        ErrorReporter errors = context.errors;
+        errors.hadError = false;
+        errors.hadRuntimeError = false;
+        boolean force = input.isBlank();
+        if (tokens == null) {
+            if (force) {
+                line++;
+                return true;
+            }
+            tokens = new TokenBuffer(Scanner.lexemeTable());
+            depth = 0;
+        } else {
+            tokens.removeLast(); // the EOF
+        }
+        int from = tokens.end();
+        ByteBuffer source = ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8));
+        new Scanner(source, errors, tokens, line++).scanTokens();
+        if (errors.hadError) {
+            // the waiting input is dropped along with the line
+            tokens = null;
+            return false;
+        }
+        for (int i = from; i < tokens.end(); i++) {
+            switch (tokens.type(i)) {
+                case LEFT_PAREN:
+                case LEFT_BRACE:
+                    depth++;
+                    break;
+                case RIGHT_PAREN:
+                case RIGHT_BRACE:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (depth > 0 && !force) {
+            return true;
+        }
+
+        // the errors are only reported once it's known the input is complete
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        ErrorReporter parseErrors = new ErrorReporter(new PrintStream(messages, true, StandardCharsets.UTF_8));
+        Parser parser = new Parser(tokens, parseErrors);
+        List<Stmt> statements = context.onStack(() -> force ? parser.parse() : parser.parseIfComplete());
+        if (statements == null) {
+            return true;
+        }
+        tokens = null;
+        if (parseErrors.hadError) {
+            errors.replay(messages.toString(StandardCharsets.UTF_8));
+            return false;
+        }
+        context.run(statements);
+        return !errors.hadError && !errors.hadRuntimeError;
+    }
+}
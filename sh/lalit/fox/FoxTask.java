@@ -0,0 +1,53 @@
+package sh.lalit.fox;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// what spawn returns. the function runs on a thread of its own (see Threads)
+// with an interpreter forked from the one that spawned it, so tasks only share
+// the code, the globals and whatever values they're handed. await gives back
+// what the function returned, or throws the error it stopped with
+final class FoxTask {
+    private final FutureTask<Object> result;
+
+    FoxTask(Interpreter interpreter, FoxCallable function) {
+        Interpreter own = interpreter.fork();
+        result = new FutureTask<>(() -> {
+            try {
+                return function.call(own, new ArrayList<>());
+            } catch (StackOverflowError error) {
+                throw new RuntimeError("Stack overflow.");
+            }
+        });
+        Threads.newThread("fox-task", Threads.stackSize(interpreter.maxDepth), result).start();
+    }
+
+    // an interrupt can't stop the wait halfway, it's kept for later
+    Object await() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw (RuntimeException) e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
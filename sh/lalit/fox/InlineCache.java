@@ -0,0 +1,50 @@
+package sh.lalit.fox;
+
+// one entry of the inline cache of a Get or Set node. for instances with
+// `shape` the property is either the field at `index` (and after a Set the
+// instance has the shape `transition`), or, when index is -1, `method` as
+// resolved for instances of `klass`. entries are immutable and linked, a node
+// only ever swaps in a new head, so a node shared between threads never sees
+// a half built entry
+class InlineCache {
+    // after this many entries the node is megamorphic and stops caching
+    static final int MAX_SHAPES = 4;
+
+    final Shape shape;
+    final int index;
+    final Shape transition;
+    final FoxClass klass;
+    final FoxFunction method;
+    final InlineCache next;
+    final int size;
+
+    // a field
+    InlineCache(Shape shape, int index, Shape transition, InlineCache next) {
+        this(shape, index, transition, null, null, next);
+    }
+
+    // a method, shape is still checked since a field would shadow it
+    InlineCache(Shape shape, FoxClass klass, FoxFunction method, InlineCache next) {
+        this(shape, -1, shape, klass, method, next);
+    }
+
+    private InlineCache(Shape shape, int index, Shape transition, FoxClass klass, FoxFunction method,
+            InlineCache next) {
+        this.shape = shape;
+        this.index = index;
+        this.transition = transition;
+        this.klass = klass;
+        this.method = method;
+        this.next = next;
+        this.size = next == null ? 1 : next.size + 1;
+    }
+
+    static InlineCache find(InlineCache cache, Shape shape, FoxClass klass) {
+        for (InlineCache entry = cache; entry != null; entry = entry.next) {
+            if (entry.shape == shape && (entry.klass == null || entry.klass == klass)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+}
@@ -1,5 +1,6 @@
 package sh.lalit.fox;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -12,40 +13,108 @@ import sh.lalit.fox.Expr.Literal;
 import sh.lalit.fox.Expr.Logical;
 import sh.lalit.fox.Expr.Unary;
 import sh.lalit.fox.Expr.Variable;
-import sh.lalit.fox.Return;
 
-class RuntimeError extends RuntimeException {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+    // shared with the interpreters forked for tasks and generators
+    final Environment globals;
+    // where print statements and runtime errors go, see FoxContext
+    final PrintStream out;
+    final ErrorReporter errors;
+    private Environment environment;
+    // value of the return statement that completed with Completion.RETURN,
+    // picked up by FoxFunction.invoke
+    Object returnValue;
+    // compile hot functions and loops to JVM bytecode, see Jit
+    boolean jit = false;
+    // how many calls can be running at once before a "Stack overflow." error,
+    // set with --max-depth
+    static final int MAX_DEPTH = 10000;
+    int maxDepth = MAX_DEPTH;
+    private int depth = 0;
+
+    static final FoxCallable clock = new FoxCallable() {
+        @Override
+        public int arity() {
+            return 0;
+        }
 
-    final Token token;
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return (double) System.currentTimeMillis() / 1000.0;
+        }
 
-    RuntimeError(Token token, String message) {
-        super(message);
-        this.token = token;
-    }
-}
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // spawn(fn) runs fn on a thread of its own and returns the FoxTask
+    static final FoxCallable spawn = new FoxCallable() {
+        @Override
+        public int arity() {
+            return 1;
+        }
 
-    public Interpreter() {
-        globals.define("clock", new FoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Object function = arguments.get(0);
+            if (!(function instanceof FoxCallable) || ((FoxCallable) function).arity() != 0) {
+                throw new RuntimeError("Can only spawn functions that take no arguments.");
             }
+            return new FoxTask(interpreter, (FoxCallable) function);
+        }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis() / 1000.0;
-            }
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
 
-            @Override
-            public String toString() {
-                return "<native fn>";
+    // await(task) waits for the task to finish and returns what it returned
+    static final FoxCallable await = new FoxCallable() {
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Object task = arguments.get(0);
+            if (!(task instanceof FoxTask)) {
+                throw new RuntimeError("Can only await tasks.");
             }
-        });
+            return ((FoxTask) task).await();
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    };
+
+    // the natives are defined by FoxContext
+    Interpreter(PrintStream out, ErrorReporter errors) {
+        this.globals = new Environment();
+        this.environment = globals;
+        this.out = out;
+        this.errors = errors;
+    }
+
+    // runs code on another thread. only the globals are shared, the calls
+    // and environments it goes through are its own
+    private Interpreter(Interpreter parent) {
+        globals = parent.globals;
+        environment = globals;
+        out = parent.out;
+        errors = parent.errors;
+        jit = parent.jit;
+        maxDepth = parent.maxDepth;
+        depth = parent.depth;
+    }
+
+    Interpreter fork() {
+        return new Interpreter(this);
     }
 
     public void interpret(List<Stmt> statements) {
@@ -54,107 +123,418 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Fox.runtimeError(error);
+            errors.runtimeError(error);
         }
     }
 
     @Override
     public Object visitBinaryExpr(Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+                return box(leftNumber(expr) - rightNumber(expr));
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+                return box(leftNumber(expr) * rightNumber(expr));
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
+                return box(leftNumber(expr) / rightNumber(expr));
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
-                }
-
-                if (left instanceof String && right instanceof Double
-                        || left instanceof Double && right instanceof String) {
-                    return stringify(left) + stringify(right);
-                }
-
+                return add(expr);
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
+                return leftNumber(expr) > rightNumber(expr);
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
+                return leftNumber(expr) >= rightNumber(expr);
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
+                return leftNumber(expr) < rightNumber(expr);
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
+                return leftNumber(expr) <= rightNumber(expr);
             case BANG_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return !isEqual(left, right);
+                // Double.compare agrees with Double.equals used by isEqual on NaN and -0
+                return Double.compare(leftNumber(expr), rightNumber(expr)) != 0;
             case EQUAL_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return isEqual(left, right);
+                return Double.compare(leftNumber(expr), rightNumber(expr)) == 0;
             default:
+                evaluate(expr.left);
+                evaluate(expr.right);
                 return null;
         }
     }
 
+    // `+` is the only operator that takes more than one type of operand. each
+    // node specialises itself to the types it first sees, so a stable node
+    // only checks that its operands still match and runs one case
+    private Object add(Binary expr) {
+        switch (expr.state) {
+            case DOUBLE:
+                return box(evaluateDouble(expr.left) + evaluateDouble(expr.right));
+            case NUMBER: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (left instanceof Double && right instanceof Double) {
+                    return box((double) left + (double) right);
+                }
+                expr.state = Specialization.GENERIC;
+                return addGeneric(expr, left, right);
+            }
+            case STRING: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                expr.state = Specialization.GENERIC;
+                return addGeneric(expr, left, right);
+            }
+            case GENERIC:
+                return addGeneric(expr, evaluate(expr.left), evaluate(expr.right));
+            default: {
+                if (isNumeric(expr.left) && isNumeric(expr.right)) {
+                    expr.state = Specialization.DOUBLE;
+                    return add(expr);
+                }
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (left instanceof Double && right instanceof Double) {
+                    expr.state = Specialization.NUMBER;
+                } else if (left instanceof String && right instanceof String) {
+                    expr.state = Specialization.STRING;
+                } else {
+                    expr.state = Specialization.GENERIC;
+                }
+                return addGeneric(expr, left, right);
+            }
+        }
+    }
+
+    Object addGeneric(Binary expr, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return box((double) left + (double) right);
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+
+        if (left instanceof String && right instanceof Double
+                || left instanceof Double && right instanceof String) {
+            return stringify(left) + stringify(right);
+        }
+        checkNumberOperands(expr.operator, left, right);
+        return null;
+    }
+
+    // true for expressions that evaluate to a number or throw, never to
+    // anything else. these are computed with evaluateDouble so intermediate
+    // results of arithmetic aren't boxed
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Literal) {
+            return ((Literal) expr).value instanceof Double;
+        }
+        if (expr instanceof Grouping) {
+            return isNumeric(((Grouping) expr).expression);
+        }
+        if (expr instanceof Unary) {
+            return ((Unary) expr).operator.type == TokenType.MINUS;
+        }
+        if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+                case PLUS:
+                    return isNumeric(binary.left) && isNumeric(binary.right);
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Literal) {
+            return (double) ((Literal) expr).value;
+        }
+        if (expr instanceof Grouping) {
+            return evaluateDouble(((Grouping) expr).expression);
+        }
+        if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            if (isNumeric(unary.right)) {
+                return -evaluateDouble(unary.right);
+            }
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double) right;
+        }
+        Binary binary = (Binary) expr;
+        switch (binary.operator.type) {
+            case MINUS:
+                return leftNumber(binary) - rightNumber(binary);
+            case STAR:
+                return leftNumber(binary) * rightNumber(binary);
+            case SLASH:
+                return leftNumber(binary) / rightNumber(binary);
+            default:
+                return evaluateDouble(binary.left) + evaluateDouble(binary.right);
+        }
+    }
+
+    // operands of an operator that needs numbers. the right operand is still
+    // evaluated when the left one isn't a number, before the error is thrown
+    private double leftNumber(Binary expr) {
+        if (isNumeric(expr.left)) {
+            return evaluateDouble(expr.left);
+        }
+        Object left = evaluate(expr.left);
+        if (!(left instanceof Double)) {
+            evaluate(expr.right);
+            throw new RuntimeError(expr.operator, "Left Operand must be a number");
+        }
+        return (double) left;
+    }
+
+    private double rightNumber(Binary expr) {
+        if (isNumeric(expr.right)) {
+            return evaluateDouble(expr.right);
+        }
+        Object right = evaluate(expr.right);
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(expr.operator, "Right operand must be a number");
+        }
+        return (double) right;
+    }
+
+    // boxed doubles for small integers, the usual results of counters and
+    // indices, so producing them doesn't allocate
+    private static final int SMALL_MIN = -128;
+    private static final int SMALL_MAX = 1023;
+    private static final Double[] SMALL = new Double[SMALL_MAX - SMALL_MIN + 1];
+
+    static {
+        for (int i = 0; i < SMALL.length; i++) {
+            SMALL[i] = (double) (i + SMALL_MIN);
+        }
+    }
+
+    static Double box(double value) {
+        int i = (int) value;
+        // -0.0 isn't cached, it prints differently from 0
+        if (i == value && i >= SMALL_MIN && i <= SMALL_MAX && (i != 0 || 1 / value > 0)) {
+            return SMALL[i - SMALL_MIN];
+        }
+        return value;
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (expr.tail) {
+            return tailCall(expr);
+        }
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(args) runs the method with obj as `this` straight
+            // away, a bound method is only created when the method is used as
+            // a value
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            InlineCache entry = lookupCallee(get, object);
+            Object field = fieldCallee(entry, object);
+            return callProperty(expr, object, entry, field, evaluateArguments(expr));
+        }
         Object callee = evaluate(expr.callee);
+        return call(expr, callee, evaluateArguments(expr));
+    }
+
+    // the same as visitCallExpr, but a call to a Fox function is only
+    // checked. the FoxFunction.TailCall it gives is made by invoke once the
+    // function running the `return` has finished
+    private Object tailCall(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            InlineCache entry = lookupCallee(get, object);
+            Object field = fieldCallee(entry, object);
+            return tailCallProperty(expr, object, entry, field, evaluateArguments(expr));
+        }
+        Object callee = evaluate(expr.callee);
+        return tailCall(expr, callee, evaluateArguments(expr));
+    }
+
+    Object tailCallProperty(Expr.Call expr, Object object, InlineCache entry, Object field,
+            List<Object> arguments) {
+        if (entry.index >= 0) {
+            return tailCall(expr, field, arguments);
+        }
+        checkArity(expr, entry.method, arguments);
+        return new FoxFunction.TailCall(entry.method, (FoxInstance) object, arguments);
+    }
+
+    Object tailCall(Expr.Call expr, Object callee, List<Object> arguments) {
+        if (callee instanceof FoxFunction) {
+            FoxFunction function = (FoxFunction) callee;
+            checkArity(expr, function, arguments);
+            return function.tailCall(arguments);
+        }
+        return call(expr, callee, arguments);
+    }
+
+    // the steps of calling obj.name(args), split up so Jit can evaluate the
+    // arguments in between them like the interpreter does
+    InlineCache lookupCallee(Expr.Get get, Object object) {
+        if (!(object instanceof FoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances can have properties.");
+        }
+        return lookupProperty(get, (FoxInstance) object);
+    }
+
+    // a field holding the callee is read before the arguments run
+    static Object fieldCallee(InlineCache entry, Object object) {
+        return entry.index >= 0 ? ((FoxInstance) object).values[entry.index] : null;
+    }
+
+    Object callProperty(Expr.Call expr, Object object, InlineCache entry, Object field, List<Object> arguments) {
+        if (entry.index >= 0) {
+            return call(expr, field, arguments);
+        }
+        checkArity(expr, entry.method, arguments);
+        enter(expr);
+        try {
+            return entry.method.invoke(this, (FoxInstance) object, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        } finally {
+            depth--;
+        }
+    }
+
+    private List<Object> evaluateArguments(Expr.Call expr) {
         List<Object> arguments = new ArrayList<>();
         for (Expr arg : expr.arguments) {
             arguments.add(evaluate(arg));
         }
+        return arguments;
+    }
+
+    Object call(Expr.Call expr, Object callee, List<Object> arguments) {
         if (!(callee instanceof FoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
         FoxCallable function = (FoxCallable) callee;
+        checkArity(expr, function, arguments);
+        if (function instanceof FoxGenerator && ((FoxGenerator) function).running) {
+            throw new RuntimeError(expr.paren, "Generator is already running.");
+        }
+        enter(expr);
+        try {
+            return function.call(this, arguments);
+        } catch (StackOverflowError error) {
+            // the java stack ran out before maxDepth was reached. the deepest
+            // call with room left to create the error reports it
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        } catch (RuntimeError error) {
+            if (error.line < 0) {
+                throw new RuntimeError(expr.paren, error.getMessage());
+            }
+            throw error;
+        } finally {
+            depth--;
+        }
+    }
+
+    // every call made by Fox code is counted here, so how deep a script can
+    // recurse doesn't depend on how big the java stack is
+    private void enter(Expr.Call expr) {
+        if (depth == maxDepth) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+        depth++;
+    }
+
+    private void checkArity(Expr.Call expr, FoxCallable function, List<Object> arguments) {
         if (arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren,
                     "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
         }
-        return function.call(this, arguments);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(expr, evaluate(expr.object));
+    }
+
+    Object getProperty(Expr.Get expr, Object object) {
         if (object instanceof FoxInstance) {
-            return ((FoxInstance) object).get(expr.name);
+            FoxInstance instance = (FoxInstance) object;
+            InlineCache entry = lookupProperty(expr, instance);
+            if (entry.index >= 0) {
+                return instance.values[entry.index];
+            }
+            // if a valid method is accessed via a getter,
+            // `this` is first defined for the requested method and then is returned
+            return entry.method.bind(instance);
         }
 
         throw new RuntimeError(expr.name, "Only instances can have properties.");
     }
 
-    // @Override
+    private InlineCache lookupProperty(Expr.Get expr, FoxInstance instance) {
+        InlineCache entry = InlineCache.find(expr.cache, instance.shape, instance.klass);
+        if (entry != null) {
+            return entry;
+        }
+        Shape shape = instance.shape;
+        int index = shape.indexOf(expr.name.symbol);
+        if (index >= 0) {
+            entry = new InlineCache(shape, index, shape, expr.cache);
+        } else {
+            FoxFunction method = instance.klass.findMethod(expr.name.symbol);
+            if (method == null) {
+                throw new RuntimeError(expr.name, "Undefined property '" + expr.name.lexeme + "'.");
+            }
+            entry = new InlineCache(shape, instance.klass, method, expr.cache);
+        }
+        if (entry.size <= InlineCache.MAX_SHAPES) {
+            expr.cache = entry;
+        }
+        return entry;
+    }
+
+    @Override
     public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+        FoxInstance instance = fieldOwner(expr, evaluate(expr.object));
+        return setProperty(expr, instance, evaluate(expr.value));
+    }
+
+    FoxInstance fieldOwner(Expr.Set expr, Object object) {
         if (!(object instanceof FoxInstance)) {
             throw new RuntimeError(expr.name, "Only instances can have fields.");
         }
-
-        Object value = evaluate(expr.value);
-        ((FoxInstance) object).set(expr.name, value);
+        return (FoxInstance) object;
+    }
+
+    Object setProperty(Expr.Set expr, FoxInstance instance, Object value) {
+        InlineCache entry = InlineCache.find(expr.cache, instance.shape, instance.klass);
+        if (entry == null) {
+            Shape shape = instance.shape;
+            int index = shape.indexOf(expr.name.symbol);
+            if (index >= 0) {
+                entry = new InlineCache(shape, index, shape, expr.cache);
+            } else {
+                entry = new InlineCache(shape, shape.size(), shape.with(expr.name.symbol), expr.cache);
+            }
+            if (entry.size <= InlineCache.MAX_SHAPES) {
+                expr.cache = entry;
+            }
+        }
+        instance.write(entry, expr.name.symbol, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        FoxClass superclass = (FoxClass) environment.getAt(distance, "super");
-        FoxInstance object = (FoxInstance) environment.getAt(distance - 1, "this");
-        FoxFunction method = superclass.findMethod(expr.method.lexeme);
+        int distance = expr.depth;
+        FoxClass superclass = (FoxClass) environment.getAt(distance, expr.slot);
+        // `this` is the first slot of the method's frame, right inside the environment holding `super`
+        FoxInstance object = (FoxInstance) environment.getAt(distance - 1, 0);
+        FoxFunction method = superclass.findMethod(expr.method.symbol);
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
         }
@@ -163,19 +543,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        return lookupVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitVariableExpr(Variable expr) {
         // return environment.get(expr.name);
-        return lookupVariable(expr.name, expr);
+        return lookupVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookupVariable(Token name, int depth, int slot) {
+        if (depth != Resolver.GLOBAL) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
@@ -210,7 +589,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperand(expr.operator, right);
-                return -(double) right;
+                return box(-(double) right);
             case BANG:
                 return !isTruthy(right);
             default:
@@ -231,7 +610,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 !(left instanceof Double) ? "Left Operand must be a number" : "Right operand must be a number");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -239,7 +618,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null)
             return true;
         if (a == null)
@@ -247,7 +626,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null)
             return "null";
         if (object instanceof Double) {
@@ -264,35 +643,33 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt statement) {
+    private Completion execute(Stmt statement) {
         // if (statement != null)
-        statement.accept(this);
-    }
-
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+        return statement.accept(this);
     }
 
     // this method is used in FoxFunction.java
     // hence it's public
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+    public Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
             for (Stmt statement : statements) {
-                execute(statement);
+                if (execute(statement) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment, stmt.slots));
     }
 
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -300,80 +677,193 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 throw new RuntimeError(stmt.superclass.name, "Superclass has to be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
         if (stmt.superclass != null) {
             // for each method parsed, a new env is created that stores only "super"
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            environment.define(Symbol.SUPER, superclass);
         }
-        Map<String, FoxFunction> methods = new HashMap<>();
+        Map<Symbol, FoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            FoxFunction function = new FoxFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            FoxFunction function = new FoxFunction(method, environment, method.name.symbol == Symbol.INIT);
+            methods.put(method.name.symbol, function);
         }
         FoxClass klass = new FoxClass(stmt.name.lexeme, (FoxClass) superclass, methods);
         // pop off the environment which contains only "super"
         if (superclass != null) {
             environment = environment.enclosing;
         }
-        environment.assign(stmt.name, klass);
-        return null;
+        // the class is only defined once it's complete, its methods look the
+        // name up when they run so they can still refer to it
+        environment.define(stmt.name.symbol, klass);
+        return Completion.NORMAL;
     }
 
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         FoxFunction function = new FoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        environment.define(stmt.name.symbol, function);
+        return Completion.NORMAL;
     }
 
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out.println(stringify(value));
+        return Completion.NORMAL;
+    }
+
+    public Completion visitYieldStmt(Stmt.Yield stmt) {
+        Object value = null;
+        if (stmt.value != null)
+            value = evaluate(stmt.value);
+        FoxGenerator.yield(value);
+        return Completion.NORMAL;
     }
 
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null)
             value = evaluate(stmt.value);
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        environment.define(stmt.name.symbol, value);
+        return Completion.NORMAL;
     }
 
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        if (stmt.compiled != null) {
+            return (Completion) stmt.compiled.run(this, environment, null, null);
+        }
+        Environment frame = null;
+        if (stmt.reuseFrame) {
+            frame = new Environment(environment, ((Stmt.Block) stmt.body).slots);
+        }
+        if (stmt.counted) {
+            Variable counter = (Variable) ((Binary) stmt.condition).left;
+            if (environment.getAt(counter.depth, counter.slot) instanceof Double) {
+                return countedLoop(stmt, counter, frame);
+            }
+        }
+        Binary comparison = stmt.hoistLimit ? (Binary) stmt.condition : null;
+        double limit = 0;
+        boolean first = true;
+        while (true) {
+            if (comparison != null) {
+                double left = leftNumber(comparison);
+                if (first) {
+                    limit = rightNumber(comparison);
+                    first = false;
+                }
+                if (!compare(comparison.operator.type, left, limit)) {
+                    break;
+                }
+            } else if (!isTruthy(evaluate(stmt.condition))) {
+                break;
+            }
+            if (loopBody(stmt, frame) == Completion.RETURN) {
+                return Completion.RETURN;
+            }
+            if (stmt.increment != null) {
+                evaluate(stmt.increment);
+            }
+            if (jit && ++stmt.iterations == Jit.LOOP_THRESHOLD) {
+                stmt.compiled = Jit.compile(stmt);
+                if (stmt.compiled != null) {
+                    // carry on from the next condition check in compiled code
+                    return (Completion) stmt.compiled.run(this, environment, null, null);
+                }
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    // a for loop whose variable only changes by a constant step in its
+    // increment, see Optimizer.countedLoop. the counter stays unboxed and is
+    // written back after each step so the body still reads it from its slot
+    private Completion countedLoop(Stmt.While stmt, Variable variable, Environment frame) {
+        Binary comparison = (Binary) stmt.condition;
+        Binary step = (Binary) ((Expr.Assign) stmt.increment).value;
+        double delta = (double) ((Literal) (step.right instanceof Literal ? step.right : step.left)).value;
+        if (step.operator.type == TokenType.MINUS) {
+            delta = -delta;
+        }
+        Environment scope = environment.ancestor(variable.depth);
+        double counter = (double) scope.getAt(0, variable.slot);
+        double limit = 0;
+        boolean first = true;
+        while (true) {
+            if (first || !stmt.hoistLimit) {
+                limit = rightNumber(comparison);
+                first = false;
+            }
+            if (!compare(comparison.operator.type, counter, limit)) {
+                break;
+            }
+            if (loopBody(stmt, frame) == Completion.RETURN) {
+                return Completion.RETURN;
+            }
+            counter += delta;
+            scope.assignAt(0, variable.slot, box(counter));
+            if (jit && ++stmt.iterations == Jit.LOOP_THRESHOLD) {
+                stmt.compiled = Jit.compile(stmt);
+                if (stmt.compiled != null) {
+                    return (Completion) stmt.compiled.run(this, environment, null, null);
+                }
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    // runs the body of a loop in the frame it reuses, if it has one
+    private Completion loopBody(Stmt.While stmt, Environment frame) {
+        if (frame == null) {
+            return execute(stmt.body);
+        }
+        frame.reset();
+        return executeBlock(((Stmt.Block) stmt.body).statements, frame);
+    }
+
+    // a comparison between two numbers, as visitBinaryExpr makes it
+    private static boolean compare(TokenType operator, double left, double right) {
+        switch (operator) {
+            case GREATER:
+                return left > right;
+            case GREATER_EQUAL:
+                return left >= right;
+            case LESS:
+                return left < right;
+            case LESS_EQUAL:
+                return left <= right;
+            case BANG_EQUAL:
+                return Double.compare(left, right) != 0;
+            default:
+                return Double.compare(left, right) == 0;
         }
-        return null;
     }
 
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth != Resolver.GLOBAL) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
             globals.assign(expr.name, value);
         }
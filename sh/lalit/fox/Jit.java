@@ -0,0 +1,656 @@
+package sh.lalit.fox;
+
+import static sh.lalit.fox.ClassWriter.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// compiles hot functions and loops to JVM bytecode, loaded as hidden classes
+// so HotSpot optimises them like any other java code. fox locals become JVM
+// locals and arithmetic on numbers is done on unboxed doubles, everything
+// else (globals, closures, calls, properties) goes through the same
+// Interpreter and Environment methods the tree-walker uses. code the compiler
+// doesn't handle, like nested functions and classes which would capture JVM
+// locals, is left to the interpreter
+final class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // invocations of a function and iterations of a loop before they're compiled
+    static final int CALL_THRESHOLD = 1000;
+    static final int LOOP_THRESHOLD = 10000;
+
+    private static final String INTERPRETER = "sh/lalit/fox/Interpreter";
+    private static final String ENVIRONMENT = "sh/lalit/fox/Environment";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String RUN = "(Lsh/lalit/fox/Interpreter;Lsh/lalit/fox/Environment;"
+            + "Lsh/lalit/fox/FoxInstance;Ljava/util/List;)Ljava/lang/Object;";
+    private static final String NAME = "sh/lalit/fox/Compiled";
+
+    // locals of the generated run method, the fox ones come after these
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int ENVIRONMENT_LOCAL = 2;
+    private static final int RECEIVER_LOCAL = 3;
+    private static final int ARGUMENTS_LOCAL = 4;
+    private static final int CONSTANTS_LOCAL = 5;
+
+    // thrown while compiling code Jit doesn't handle
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final ClassWriter writer = new ClassWriter(NAME, OBJECT, "sh/lalit/fox/JitCode");
+    private final ClassWriter.Code code = new ClassWriter.Code();
+    // objects the code needs, like AST nodes and literal values, are kept in
+    // an array and loaded by index
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+    // the JVM local of each slot in the fox scopes opened by the compiled code
+    private final List<List<Integer>> scopes = new ArrayList<>();
+    // loops are compiled on their own and complete like a statement, see
+    // Interpreter.visitWhileStmt. functions return their value
+    private final boolean loop;
+    private int locals = CONSTANTS_LOCAL + 1;
+
+    private Jit(boolean loop) {
+        this.loop = loop;
+        code.local(ALOAD, 0, 1);
+        code.op2(GETFIELD, writer.fieldRef(NAME, "constants", "[Ljava/lang/Object;"), 0);
+        code.local(ASTORE, CONSTANTS_LOCAL, -1);
+    }
+
+    // returns null when the function can't be compiled
+    static JitCode compile(Stmt.Function function, boolean method) {
+        Jit jit = new Jit(false);
+        try {
+            jit.scopes.add(new ArrayList<>());
+            if (method) {
+                jit.code.local(ALOAD, RECEIVER_LOCAL, 1);
+                jit.code.local(ASTORE, jit.declare(), -1);
+            }
+            for (int i = 0; i < function.params.size(); i++) {
+                jit.code.local(ALOAD, ARGUMENTS_LOCAL, 1);
+                jit.code.pushInt(i);
+                jit.code.invoke(INVOKEINTERFACE, jit.writer.interfaceMethodRef("java/util/List", "get",
+                        "(I)Ljava/lang/Object;"), "(I)Ljava/lang/Object;");
+                jit.code.local(ASTORE, jit.declare(), -1);
+            }
+            for (Stmt statement : function.body) {
+                statement.accept(jit);
+            }
+            jit.code.op(ACONST_NULL, 1);
+            jit.code.op(ARETURN, -1);
+            return jit.define();
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    // the compiled loop starts at its condition, with the environment the
+    // loop runs in as its innermost enclosing one
+    static JitCode compile(Stmt.While stmt) {
+        Jit jit = new Jit(true);
+        try {
+            stmt.accept(jit);
+            jit.code.op2(GETSTATIC, jit.writer.fieldRef("sh/lalit/fox/Completion", "NORMAL",
+                    "Lsh/lalit/fox/Completion;"), 1);
+            jit.code.op(ARETURN, -1);
+            return jit.define();
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    private JitCode define() {
+        // jumps have 16 bit offsets
+        if (code.length > Short.MAX_VALUE || constants.size() > Short.MAX_VALUE) {
+            return null;
+        }
+        code.maxLocals = locals;
+        // final, so a task on another thread that picks up the compiled code
+        // from the AST also sees its constants
+        writer.field(ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+        ClassWriter.Code init = new ClassWriter.Code();
+        init.local(ALOAD, 0, 1);
+        init.invoke(INVOKESPECIAL, writer.methodRef(OBJECT, "<init>", "()V"), "()V");
+        init.local(ALOAD, 0, 1);
+        init.local(ALOAD, 1, 1);
+        init.op2(PUTFIELD, writer.fieldRef(NAME, "constants", "[Ljava/lang/Object;"), -2);
+        init.op(RETURN, 0);
+        init.maxLocals = 2;
+        writer.method(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", init);
+        writer.method(ACC_PUBLIC, "run", RUN, code);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+            return (JitCode) lookup.lookupClass().getConstructor(Object[].class)
+                    .newInstance((Object) constants.toArray());
+        } catch (LinkageError | ReflectiveOperationException e) {
+            // the interpreter keeps running the code if it doesn't load
+            return null;
+        }
+    }
+
+    private int declare() {
+        if (scopes.isEmpty()) {
+            throw new Unsupported();
+        }
+        int local = newLocal(1);
+        scopes.get(scopes.size() - 1).add(local);
+        return local;
+    }
+
+    private int newLocal(int size) {
+        int local = locals;
+        locals += size;
+        return local;
+    }
+
+    private void constant(Object value, String type) {
+        Integer index = constantIndices.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+        code.local(ALOAD, CONSTANTS_LOCAL, 1);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        if (type != null) {
+            code.op2(CHECKCAST, writer.classRef(type), 0);
+        }
+    }
+
+    private void invoke(int opcode, String owner, String name, String descriptor) {
+        code.invoke(opcode, writer.methodRef(owner, name, descriptor), descriptor);
+    }
+
+    private void box() {
+        invoke(INVOKESTATIC, INTERPRETER, "box", "(D)Ljava/lang/Double;");
+    }
+
+    private void emit(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new ArrayList<>());
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        emit(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseJump = jumpIfFalse(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            code.patch(elseJump);
+            return null;
+        }
+        int endJump = code.jump(GOTO);
+        code.patch(elseJump);
+        stmt.elseBranch.accept(this);
+        code.patch(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.local(ALOAD, INTERPRETER_LOCAL, 1);
+        code.op2(GETFIELD, writer.fieldRef(INTERPRETER, "out", "Ljava/io/PrintStream;"), 0);
+        emit(stmt.expression);
+        invoke(INVOKESTATIC, INTERPRETER, "stringify", "(Ljava/lang/Object;)Ljava/lang/String;");
+        invoke(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V");
+        return null;
+    }
+
+    // a generator's body is suspended on its own thread, see FoxGenerator
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (loop) {
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+        }
+        if (stmt.value != null) {
+            emit(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        if (loop) {
+            code.op2(PUTFIELD, writer.fieldRef(INTERPRETER, "returnValue", "Ljava/lang/Object;"), -2);
+            code.op2(GETSTATIC, writer.fieldRef("sh/lalit/fox/Completion", "RETURN",
+                    "Lsh/lalit/fox/Completion;"), 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            emit(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.local(ASTORE, declare(), -1);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int start = code.length;
+        int exitJump = jumpIfFalse(stmt.condition);
+        stmt.body.accept(this);
+        if (stmt.increment != null) {
+            emit(stmt.increment);
+            code.op(POP, -1);
+        }
+        code.jumpBack(GOTO, start);
+        code.patch(exitJump);
+        return null;
+    }
+
+    // emits a jump taken when the condition is false and returns it for patching
+    private int jumpIfFalse(Expr condition) {
+        if (condition instanceof Expr.Grouping) {
+            return jumpIfFalse(((Expr.Grouping) condition).expression);
+        }
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            switch (binary.operator.type) {
+                // dcmpg and dcmpl are picked so comparisons with NaN are false
+                case GREATER:
+                    operands(binary);
+                    code.op(DCMPL, -3);
+                    return code.jump(IFLE);
+                case GREATER_EQUAL:
+                    operands(binary);
+                    code.op(DCMPL, -3);
+                    return code.jump(IFLT);
+                case LESS:
+                    operands(binary);
+                    code.op(DCMPG, -3);
+                    return code.jump(IFGE);
+                case LESS_EQUAL:
+                    operands(binary);
+                    code.op(DCMPG, -3);
+                    return code.jump(IFGT);
+                // Double.compare agrees with Double.equals used by Interpreter.isEqual
+                case EQUAL_EQUAL:
+                    operands(binary);
+                    invoke(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I");
+                    return code.jump(IFNE);
+                case BANG_EQUAL:
+                    operands(binary);
+                    invoke(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I");
+                    return code.jump(IFEQ);
+                default:
+                    break;
+            }
+        }
+        emit(condition);
+        invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        return code.jump(IFEQ);
+    }
+
+    // leaves the value of an expression Interpreter.isNumeric accepts on the
+    // stack as a double
+    private void emitDouble(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            code.op2(LDC2_W, writer.doubleConstant((double) ((Expr.Literal) expr).value), 2);
+        } else if (expr instanceof Expr.Grouping) {
+            emitDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (Interpreter.isNumeric(unary.right)) {
+                emitDouble(unary.right);
+            } else {
+                emit(unary.right);
+                constant(unary.operator, "sh/lalit/fox/Token");
+                invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "number", "(Ljava/lang/Object;Lsh/lalit/fox/Token;)D");
+            }
+            code.op(DNEG, 0);
+        } else {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                    operands(binary);
+                    code.op(DSUB, -2);
+                    break;
+                case STAR:
+                    operands(binary);
+                    code.op(DMUL, -2);
+                    break;
+                case SLASH:
+                    operands(binary);
+                    code.op(DDIV, -2);
+                    break;
+                default:
+                    emitDouble(binary.left);
+                    emitDouble(binary.right);
+                    code.op(DADD, -2);
+            }
+        }
+    }
+
+    // leaves both operands of an operator that needs numbers on the stack as
+    // doubles. like Interpreter.leftNumber, the right operand is evaluated
+    // before an error about the left one is thrown
+    private void operands(Expr.Binary expr) {
+        String check = "(Ljava/lang/Object;Lsh/lalit/fox/Token;)D";
+        if (Interpreter.isNumeric(expr.left)) {
+            emitDouble(expr.left);
+            if (Interpreter.isNumeric(expr.right)) {
+                emitDouble(expr.right);
+            } else {
+                emit(expr.right);
+                constant(expr.operator, "sh/lalit/fox/Token");
+                invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "rightNumber", check);
+            }
+            return;
+        }
+        emit(expr.left);
+        int left = newLocal(1);
+        code.local(ASTORE, left, -1);
+        if (Interpreter.isNumeric(expr.right)) {
+            emitDouble(expr.right);
+            int right = newLocal(2);
+            code.local(DSTORE, right, -2);
+            code.local(ALOAD, left, 1);
+            constant(expr.operator, "sh/lalit/fox/Token");
+            invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "leftNumber", check);
+            code.local(DLOAD, right, 2);
+        } else {
+            emit(expr.right);
+            int right = newLocal(1);
+            code.local(ASTORE, right, -1);
+            code.local(ALOAD, left, 1);
+            constant(expr.operator, "sh/lalit/fox/Token");
+            invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "leftNumber", check);
+            code.local(ALOAD, right, 1);
+            constant(expr.operator, "sh/lalit/fox/Token");
+            invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "rightNumber", check);
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        emit(expr.value);
+        if (expr.depth == Resolver.GLOBAL) {
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            code.op2(GETFIELD, writer.fieldRef(INTERPRETER, "globals", "Lsh/lalit/fox/Environment;"), 0);
+            constant(expr.name, "sh/lalit/fox/Token");
+            invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "assignGlobal",
+                    "(Ljava/lang/Object;Lsh/lalit/fox/Environment;Lsh/lalit/fox/Token;)Ljava/lang/Object;");
+        } else if (expr.depth < scopes.size()) {
+            code.op(DUP, 1);
+            code.local(ASTORE, scopes.get(scopes.size() - 1 - expr.depth).get(expr.slot), -1);
+        } else {
+            code.local(ALOAD, ENVIRONMENT_LOCAL, 1);
+            code.pushInt(expr.depth - scopes.size());
+            code.pushInt(expr.slot);
+            invoke(INVOKESTATIC, "sh/lalit/fox/Jit", "assignAt",
+                    "(Ljava/lang/Object;Lsh/lalit/fox/Environment;II)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                emitDouble(expr);
+                box();
+                return null;
+            case PLUS:
+                if (Interpreter.isNumeric(expr.left) && Interpreter.isNumeric(expr.right)) {
+                    emitDouble(expr);
+                    box();
+                    return null;
+                }
+                code.local(ALOAD, INTERPRETER_LOCAL, 1);
+                constant(expr, "sh/lalit/fox/Expr$Binary");
+                emit(expr.left);
+                emit(expr.right);
+                invoke(INVOKEVIRTUAL, INTERPRETER, "addGeneric",
+                        "(Lsh/lalit/fox/Expr$Binary;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                return null;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL: {
+                int falseJump = jumpIfFalse(expr);
+                code.op2(GETSTATIC, writer.fieldRef("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;"), 1);
+                int endJump = code.jump(GOTO);
+                code.patch(falseJump);
+                code.adjust(-1);
+                code.op2(GETSTATIC, writer.fieldRef("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;"), 1);
+                code.patch(endJump);
+                return null;
+            }
+            default:
+                throw new Unsupported();
+        }
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            // the same steps as Interpreter.visitCallExpr
+            Expr.Get get = (Expr.Get) expr.callee;
+            emit(get.object);
+            int object = newLocal(1);
+            code.local(ASTORE, object, -1);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(get, "sh/lalit/fox/Expr$Get");
+            code.local(ALOAD, object, 1);
+            invoke(INVOKEVIRTUAL, INTERPRETER, "lookupCallee",
+                    "(Lsh/lalit/fox/Expr$Get;Ljava/lang/Object;)Lsh/lalit/fox/InlineCache;");
+            int entry = newLocal(1);
+            code.local(ASTORE, entry, -1);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr, "sh/lalit/fox/Expr$Call");
+            code.local(ALOAD, object, 1);
+            code.local(ALOAD, entry, 1);
+            code.local(ALOAD, entry, 1);
+            code.local(ALOAD, object, 1);
+            invoke(INVOKESTATIC, INTERPRETER, "fieldCallee",
+                    "(Lsh/lalit/fox/InlineCache;Ljava/lang/Object;)Ljava/lang/Object;");
+            arguments(expr);
+            // a tail call is returned to FoxFunction.invoke like the interpreter does
+            invoke(INVOKEVIRTUAL, INTERPRETER, expr.tail ? "tailCallProperty" : "callProperty",
+                    "(Lsh/lalit/fox/Expr$Call;Ljava/lang/Object;"
+                    + "Lsh/lalit/fox/InlineCache;Ljava/lang/Object;Ljava/util/List;)Ljava/lang/Object;");
+            return null;
+        }
+        code.local(ALOAD, INTERPRETER_LOCAL, 1);
+        constant(expr, "sh/lalit/fox/Expr$Call");
+        emit(expr.callee);
+        arguments(expr);
+        invoke(INVOKEVIRTUAL, INTERPRETER, expr.tail ? "tailCall" : "call",
+                "(Lsh/lalit/fox/Expr$Call;Ljava/lang/Object;Ljava/util/List;)Ljava/lang/Object;");
+        return null;
+    }
+
+    private void arguments(Expr.Call expr) {
+        code.op2(NEW, writer.classRef("java/util/ArrayList"), 1);
+        code.op(DUP, 1);
+        invoke(INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V");
+        for (Expr argument : expr.arguments) {
+            code.op(DUP, 1);
+            emit(argument);
+            invoke(INVOKEVIRTUAL, "java/util/ArrayList", "add", "(Ljava/lang/Object;)Z");
+            code.op(POP, -1);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        code.local(ALOAD, INTERPRETER_LOCAL, 1);
+        constant(expr, "sh/lalit/fox/Expr$Get");
+        emit(expr.object);
+        invoke(INVOKEVIRTUAL, INTERPRETER, "getProperty",
+                "(Lsh/lalit/fox/Expr$Get;Ljava/lang/Object;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        emit(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else {
+            constant(expr.value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        emit(expr.left);
+        code.op(DUP, 1);
+        invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        int endJump = code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ);
+        code.op(POP, -1);
+        emit(expr.right);
+        code.patch(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        code.local(ALOAD, INTERPRETER_LOCAL, 1);
+        constant(expr, "sh/lalit/fox/Expr$Set");
+        code.local(ALOAD, INTERPRETER_LOCAL, 1);
+        constant(expr, "sh/lalit/fox/Expr$Set");
+        emit(expr.object);
+        invoke(INVOKEVIRTUAL, INTERPRETER, "fieldOwner",
+                "(Lsh/lalit/fox/Expr$Set;Ljava/lang/Object;)Lsh/lalit/fox/FoxInstance;");
+        emit(expr.value);
+        invoke(INVOKEVIRTUAL, INTERPRETER, "setProperty",
+                "(Lsh/lalit/fox/Expr$Set;Lsh/lalit/fox/FoxInstance;Ljava/lang/Object;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        load(expr.keyword, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            emitDouble(expr);
+            box();
+            return null;
+        }
+        emit(expr.right);
+        invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        code.op(ICONST_1, 1);
+        code.op(IXOR, -1);
+        invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        load(expr.name, expr.depth, expr.slot);
+        return null;
+    }
+
+    // locals declared in the compiled code are JVM locals, the ones outside it
+    // are read from the environment it was given
+    private void load(Token name, int depth, int slot) {
+        if (depth == Resolver.GLOBAL) {
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            code.op2(GETFIELD, writer.fieldRef(INTERPRETER, "globals", "Lsh/lalit/fox/Environment;"), 0);
+            constant(name, "sh/lalit/fox/Token");
+            invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(Lsh/lalit/fox/Token;)Ljava/lang/Object;");
+        } else if (depth < scopes.size()) {
+            code.local(ALOAD, scopes.get(scopes.size() - 1 - depth).get(slot), 1);
+        } else {
+            code.local(ALOAD, ENVIRONMENT_LOCAL, 1);
+            code.pushInt(depth - scopes.size());
+            code.pushInt(slot);
+            invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+        }
+    }
+
+    // called from compiled code
+
+    static double number(Object operand, Token operator) {
+        if (!(operand instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return (double) operand;
+    }
+
+    static double leftNumber(Object left, Token operator) {
+        if (!(left instanceof Double)) {
+            throw new RuntimeError(operator, "Left Operand must be a number");
+        }
+        return (double) left;
+    }
+
+    static double rightNumber(Object right, Token operator) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Right operand must be a number");
+        }
+        return (double) right;
+    }
+
+    static Object assignGlobal(Object value, Environment globals, Token name) {
+        globals.assign(name, value);
+        return value;
+    }
+
+    static Object assignAt(Object value, Environment environment, int distance, int slot) {
+        environment.assignAt(distance, slot, value);
+        return value;
+    }
+}
@@ -0,0 +1,10 @@
+package sh.lalit.fox;
+
+import java.util.List;
+
+// a function or loop compiled by Jit. a function is given its closure, receiver
+// and arguments and returns its value. a loop is given the environment it runs
+// in and returns how it completed, like Interpreter.visitWhileStmt
+interface JitCode {
+    Object run(Interpreter interpreter, Environment environment, FoxInstance receiver, List<Object> arguments);
+}
@@ -0,0 +1,134 @@
+package sh.lalit.fox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// the lexemes a Scanner has seen, looked up by their bytes in the source so
+// a name, number or string that appears again is found without making a
+// String of it. each distinct lexeme is decoded once and every token for it
+// shares that String, along with its type, literal and, for names, Symbol.
+// entries are numbered
+// in the order they were added, which is how a TokenBuffer refers to them
+final class LexemeTable {
+    static final class Entry {
+        final int id;
+        final byte[] bytes;
+        final int hash;
+        final String text;
+        final TokenType type;
+        final Object literal;
+        final Symbol symbol;
+        Entry next;
+
+        Entry(int id, byte[] bytes, int hash, String text, TokenType type, Object literal, Symbol symbol) {
+            this.id = id;
+            this.bytes = bytes;
+            this.hash = hash;
+            this.text = text;
+            this.type = type;
+            this.literal = literal;
+            this.symbol = symbol;
+        }
+    }
+
+    private Entry[] buckets = new Entry[256];
+    private Entry[] entries = new Entry[192];
+    private int count = 0;
+
+    Entry entry(int id) {
+        return entries[id];
+    }
+
+    int size() {
+        return count;
+    }
+
+    // the entry for the bytes from start to end, or null
+    Entry get(ByteBuffer source, int start, int end) {
+        int hash = hash(source, start, end);
+        for (Entry entry = buckets[hash & (buckets.length - 1)]; entry != null; entry = entry.next) {
+            if (entry.hash == hash && matches(entry.bytes, source, start, end)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // text is what the bytes decode to, passed in when the caller has it
+    Entry add(ByteBuffer source, int start, int end, String text, TokenType type, Object literal) {
+        byte[] bytes = new byte[end - start];
+        source.get(start, bytes);
+        if (text == null) {
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Symbol symbol = Token.isName(type) ? Symbol.of(text) : null;
+        return add(bytes, hash(source, start, end), text, type, literal, symbol);
+    }
+
+    // the same lexeme as an entry of a table this one was before truncate
+    Entry add(Entry entry) {
+        return add(entry.bytes, entry.hash, entry.text, entry.type, entry.literal, entry.symbol);
+    }
+
+    private Entry add(byte[] bytes, int hash, String text, TokenType type, Object literal, Symbol symbol) {
+        if (count >= buckets.length * 3 / 4) {
+            grow();
+        }
+        Entry entry = new Entry(count, bytes, hash, text, type, literal, symbol);
+        int index = hash & (buckets.length - 1);
+        entry.next = buckets[index];
+        buckets[index] = entry;
+        entries[count++] = entry;
+        return entry;
+    }
+
+    // drops every entry but the first keep
+    void truncate(int keep) {
+        Arrays.fill(entries, keep, count, null);
+        Arrays.fill(buckets, null);
+        count = keep;
+        for (int i = 0; i < keep; i++) {
+            Entry entry = entries[i];
+            int index = entry.hash & (buckets.length - 1);
+            entry.next = buckets[index];
+            buckets[index] = entry;
+        }
+    }
+
+    private void grow() {
+        entries = Arrays.copyOf(entries, entries.length * 2);
+        Entry[] old = buckets;
+        buckets = new Entry[old.length * 2];
+        for (Entry head : old) {
+            for (Entry entry = head; entry != null;) {
+                Entry next = entry.next;
+                int index = entry.hash & (buckets.length - 1);
+                entry.next = buckets[index];
+                buckets[index] = entry;
+                entry = next;
+            }
+        }
+    }
+
+    private static int hash(ByteBuffer source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+        // spread the high bits into the ones picking the bucket
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] bytes, ByteBuffer source, int start, int end) {
+        if (bytes.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != source.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
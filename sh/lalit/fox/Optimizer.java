@@ -0,0 +1,601 @@
+package sh.lalit.fox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// folds constant expressions into literals, simplifies a few arithmetic
+// identities and drops code that can never run. only rewrites that give the
+// same result at runtime are made: operations that would throw, like "a" - 1
+// or nil == nil, are left for the interpreter to report.
+//
+// it also prepares loops for the interpreter: the block a desugared for loop
+// wraps around its body and increment is taken apart, loop bodies that nothing
+// can capture reuse one frame, counted for loops are marked and a condition's
+// right operand that can't change while the loop runs is evaluated only once.
+//
+// runs after the Resolver so errors in dead code are still reported. taking a
+// block apart removes a scope, so the program is resolved again afterwards
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // the result of folding an operation that would throw
+    private static final Object NOT_CONSTANT = new Object();
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = statement.accept(this);
+            if (result != null) {
+                optimized.add(result);
+            }
+        }
+        return optimized;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // a statement where the grammar needs one, like a loop body, so one that
+    // was removed is replaced with an empty block
+    private Stmt statement(Stmt stmt) {
+        Stmt optimized = stmt.accept(this);
+        return optimized != null ? optimized : new Stmt.Block(new ArrayList<>());
+    }
+
+    private Stmt.Function function(Stmt.Function stmt) {
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, optimize(stmt.body));
+        function.slots = stmt.slots;
+        // a generator stays one even if the yields were all dead code
+        function.generator = stmt.generator;
+        return function;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements.isEmpty()) {
+            return null;
+        }
+        if (statements.size() == 2 && statements.get(0) instanceof Stmt.Var
+                && statements.get(1) instanceof Stmt.While) {
+            countedLoop((Stmt.Var) statements.get(0), (Stmt.While) statements.get(1));
+        }
+        Stmt.Block block = new Stmt.Block(statements);
+        block.slots = stmt.slots;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.add(function(method));
+        }
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) {
+            return null;
+        }
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return function(stmt);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+                return stmt.thenBranch.accept(this);
+            }
+            return stmt.elseBranch != null ? stmt.elseBranch.accept(this) : null;
+        }
+        Stmt elseBranch = stmt.elseBranch != null ? stmt.elseBranch.accept(this) : null;
+        return new Stmt.If(condition, statement(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitYieldStmt(Stmt.Yield stmt) {
+        return new Stmt.Yield(stmt.keyword, stmt.value != null ? optimize(stmt.value) : null);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return new Stmt.Return(stmt.keyword, stmt.value != null ? optimize(stmt.value) : null);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        return new Stmt.Var(stmt.name, stmt.initializer != null ? optimize(stmt.initializer) : null);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+            return null;
+        }
+        Stmt body = statement(stmt.body);
+        Expr increment = null;
+        // a desugared for loop runs Block(body, increment). the block declares
+        // nothing, so the increment becomes part of the loop and the block's
+        // environment isn't needed
+        if (body instanceof Stmt.Block && ((Stmt.Block) body).slots == 0
+                && !((Stmt.Block) body).statements.isEmpty()) {
+            List<Stmt> statements = ((Stmt.Block) body).statements;
+            Stmt last = statements.get(statements.size() - 1);
+            if (statements.size() <= 2 && last instanceof Stmt.Expression) {
+                increment = ((Stmt.Expression) last).expression;
+                body = statements.size() == 2 ? statements.get(0) : new Stmt.Block(new ArrayList<>());
+            }
+        }
+        Stmt.While loop = new Stmt.While(condition, body);
+        loop.increment = increment;
+        Effects effects = new Effects();
+        effects.scan(condition);
+        effects.scan(body);
+        if (increment != null) {
+            effects.scan(increment);
+        }
+        loop.reuseFrame = body instanceof Stmt.Block && !effects.closures;
+        loop.hoistLimit = isComparison(condition) && invariant(((Expr.Binary) condition).right, effects);
+        return loop;
+    }
+
+    // `{ var i = start; while (i < limit) { body; i = i + step; } }`, the shape
+    // of `for (var i = start; i < limit; i = i + step) body`. i is declared in a
+    // block holding nothing but the loop, so if the body doesn't assign it or
+    // declare a closure that could, it only ever changes by step
+    private static void countedLoop(Stmt.Var variable, Stmt.While loop) {
+        Symbol name = variable.name.symbol;
+        if (!isCountedLoop(loop) || !isVariable(((Expr.Binary) loop.condition).left, name)) {
+            return;
+        }
+        Effects effects = new Effects();
+        effects.scan(loop.condition);
+        effects.scan(loop.body);
+        loop.counted = !effects.closures && !effects.assigned.contains(name);
+    }
+
+    // whether the condition compares a variable and the increment steps that
+    // same variable by a constant, which the engines rely on for a counted
+    // loop. also checked on loops read from a Snapshot
+    static boolean isCountedLoop(Stmt.While loop) {
+        if (!isComparison(loop.condition) || !(((Expr.Binary) loop.condition).left instanceof Expr.Variable)
+                || !(loop.increment instanceof Expr.Assign)
+                || !(((Expr.Assign) loop.increment).value instanceof Expr.Binary)) {
+            return false;
+        }
+        Symbol name = ((Expr.Variable) ((Expr.Binary) loop.condition).left).name.symbol;
+        if (((Expr.Assign) loop.increment).name.symbol != name) {
+            return false;
+        }
+        Expr.Binary step = (Expr.Binary) ((Expr.Assign) loop.increment).value;
+        return step.operator.type == TokenType.PLUS
+                && (isVariable(step.left, name) && isNumber(step.right)
+                        || isNumber(step.left) && isVariable(step.right, name))
+                || step.operator.type == TokenType.MINUS && isVariable(step.left, name) && isNumber(step.right);
+    }
+
+    static boolean isComparison(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) {
+            return false;
+        }
+        switch (((Expr.Binary) expr).operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isVariable(Expr expr, Symbol name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.symbol == name;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    // whether expr gives the same value every time it's evaluated in a loop
+    // with these effects. it has to be pure too, so evaluating it once instead
+    // of every iteration can't be noticed. if the first evaluation throws, it
+    // throws at the same point either way
+    private static boolean invariant(Expr expr, Effects effects) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            return !effects.calls && !effects.assigned.contains(((Expr.Variable) expr).name.symbol);
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            return !effects.calls && !effects.set.contains(get.name.symbol) && invariant(get.object, effects);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && invariant(unary.right, effects);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return invariant(binary.left, effects) && invariant(binary.right, effects);
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    // what running some code can change. any call can run arbitrary code, and
+    // a function or class declared in a loop body captures its environment
+    private static final class Effects implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final Set<Symbol> assigned = new HashSet<>();
+        final Set<Symbol> set = new HashSet<>();
+        boolean calls = false;
+        boolean closures = false;
+
+        void scan(Expr expr) {
+            expr.accept(this);
+        }
+
+        void scan(Stmt stmt) {
+            stmt.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) {
+                scan(statement);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            closures = true;
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            closures = true;
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            scan(stmt.condition);
+            scan(stmt.thenBranch);
+            if (stmt.elseBranch != null) {
+                scan(stmt.elseBranch);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        // the caller runs while a generator is suspended and can change anything
+        @Override
+        public Void visitYieldStmt(Stmt.Yield stmt) {
+            calls = true;
+            if (stmt.value != null) {
+                scan(stmt.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                scan(stmt.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) {
+                scan(stmt.initializer);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            scan(stmt.condition);
+            scan(stmt.body);
+            if (stmt.increment != null) {
+                scan(stmt.increment);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            assigned.add(expr.name.symbol);
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            calls = true;
+            scan(expr.callee);
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            scan(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            scan(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            set.add(expr.name.symbol);
+            scan(expr.object);
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr.Assign assign = new Expr.Assign(expr.name, optimize(expr.value));
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != NOT_CONSTANT) {
+                return new Expr.Literal(value);
+            }
+        }
+        // x * 1, 1 * x, x / 1 and x - 0 are x for every number, including
+        // NaN and -0. x + 0 isn't, -0 + 0 is 0
+        switch (expr.operator.type) {
+            case STAR:
+                if (Interpreter.isNumeric(left) && isLiteral(right, 1.0)) {
+                    return left;
+                }
+                if (isLiteral(left, 1.0) && Interpreter.isNumeric(right)) {
+                    return right;
+                }
+                break;
+            case SLASH:
+                if (Interpreter.isNumeric(left) && isLiteral(right, 1.0)) {
+                    return left;
+                }
+                break;
+            case MINUS:
+                if (Interpreter.isNumeric(left) && isLiteral(right, 0.0)) {
+                    return left;
+                }
+                break;
+            default:
+                break;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // the value of `left op right`, the same as Interpreter.visitBinaryExpr
+    // would give it
+    private static Object fold(TokenType operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        if (operator == TokenType.PLUS) {
+            if (numbers) {
+                return (double) left + (double) right;
+            }
+            if (left instanceof String && right instanceof String) {
+                return (String) left + (String) right;
+            }
+            if (left instanceof String && right instanceof Double
+                    || left instanceof Double && right instanceof String) {
+                return Interpreter.stringify(left) + Interpreter.stringify(right);
+            }
+            return NOT_CONSTANT;
+        }
+        if (!numbers) {
+            return NOT_CONSTANT;
+        }
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case MINUS:
+                return a - b;
+            case STAR:
+                return a * b;
+            case SLASH:
+                return a / b;
+            case GREATER:
+                return a > b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            case LESS_EQUAL:
+                return a <= b;
+            case BANG_EQUAL:
+                return Double.compare(a, b) != 0;
+            case EQUAL_EQUAL:
+                return Double.compare(a, b) == 0;
+            default:
+                return NOT_CONSTANT;
+        }
+    }
+
+    // compares bits, so 0.0 doesn't match -0.0
+    private static boolean isLiteral(Expr expr, double value) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double
+                && Double.doubleToRawLongBits((double) ((Expr.Literal) expr).value) == Double
+                        .doubleToRawLongBits(value);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+        return new Expr.Call(optimize(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        return new Expr.Get(optimize(expr.object), expr.name);
+    }
+
+    // groupings only matter to the parser
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            if (expr.operator.type == TokenType.OR) {
+                return truthy ? left : right;
+            }
+            return truthy ? right : left;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        return new Expr.Set(optimize(expr.object), expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return new Expr.Literal(-(double) value);
+            }
+        }
+        // -(-x) is x for every number
+        if (expr.operator.type == TokenType.MINUS && right instanceof Expr.Unary
+                && ((Expr.Unary) right).operator.type == TokenType.MINUS
+                && Interpreter.isNumeric(((Expr.Unary) right).right)) {
+            return ((Expr.Unary) right).right;
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
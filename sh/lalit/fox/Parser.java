@@ -13,27 +13,84 @@ import java.util.List;
 public class Parser {
 
     private static class ParseError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
     }
 
-    private final List<Token> tokens;
+    // the tokens ran out in the middle of a declaration, see parseIfComplete
+    private static class EndOfInput extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // a Token is only made, by previous(), for the tokens the AST keeps
+    private final TokenBuffer tokens;
+    private final ErrorReporter errors;
     private int current = 0; // points to the next token waiting eagerly to be parsed
+    // set while parsing input that can still be continued, so an error at
+    // the EOF means more input is needed rather than a mistake
+    private boolean partial = false;
+    // set once the stack has overflowed, see topLevel
+    private boolean overflowed = false;
 
-    public Parser(List<Token> tokens) {
+    public Parser(TokenBuffer tokens, ErrorReporter errors) {
         this.tokens = tokens;
+        this.errors = errors;
     }
 
     public List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
         while (!isAtEnd()) {
-            statements.add(declaration());
+            statements.add(topLevel());
         }
         return statements;
     }
 
+    // the script a top-level declaration at a time, for running each one as
+    // soon as it's parsed. next returns null for a declaration with an
+    // error, like parse leaves in its list
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    Stmt next() {
+        Stmt statement = topLevel();
+        tokens.discard(current);
+        return statement;
+    }
+
+    // parses like parse, for FoxSession. if the tokens run out in the middle
+    // of a declaration null is returned without an error, and the same tokens
+    // can be parsed again once more have been added
+    List<Stmt> parseIfComplete() {
+        int start = current;
+        partial = true;
+        try {
+            return parse();
+        } catch (EndOfInput e) {
+            current = start;
+            return null;
+        } finally {
+            partial = false;
+        }
+    }
+
     private Expr expression() {
         return assignment();
     }
 
+    // a declaration nested deeper than the stack has room for is reported
+    // like a syntax error, once the stack has unwound. the overflow can have
+    // stopped the scanner halfway through a token, so nothing after it is
+    // parsed
+    private Stmt topLevel() {
+        try {
+            return declaration();
+        } catch (StackOverflowError e) {
+            errors.error(current, FoxEngine.TOO_DEEP);
+            overflowed = true;
+            return null;
+        }
+    }
+
     private Stmt declaration() {
         try {
             if (match(TokenType.CLASS)) {
@@ -52,7 +109,8 @@ public class Parser {
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expected class name.");
+        consume(IDENTIFIER, "Expected class name.");
+        Token name = previous();
         Expr.Variable superclass = null;
         if (match(TokenType.LESS)) {
             consume(IDENTIFIER, "Expected superclass name.");
@@ -80,6 +138,8 @@ public class Parser {
             return forStatement();
         if (match(TokenType.RETURN))
             return returnStatement();
+        if (match(TokenType.YIELD))
+            return yieldStatement();
 
         return expressionStatement();
     }
@@ -160,8 +220,19 @@ public class Parser {
         return new Stmt.Return(keyword, value);
     }
 
+    private Stmt yieldStatement() {
+        Token keyword = previous();
+        Expr value = null;
+        if (!check(TokenType.SEMICOLON)) {
+            value = expression();
+        }
+        consume(TokenType.SEMICOLON, "Expected ';' after yield value");
+        return new Stmt.Yield(keyword, value);
+    }
+
     private Stmt varDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expected variable name.");
+        consume(TokenType.IDENTIFIER, "Expected variable name.");
+        Token name = previous();
         Expr initializer = null;
         if (match(TokenType.EQUAL)) {
             initializer = expression();
@@ -185,15 +256,17 @@ public class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(TokenType.IDENTIFIER, "Expected " + kind + " name.");
+        consume(TokenType.IDENTIFIER, "Expected " + kind + " name.");
+        Token name = previous();
         consume(TokenType.LEFT_PAREN, "Expected '(' after" + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
                 if (parameters.size() > 255) {
-                    error(peek(), "Cannot have more than 255 parameters.");
+                    error("Cannot have more than 255 parameters.");
                 }
-                parameters.add(consume(TokenType.IDENTIFIER, "Expected parameter name."));
+                consume(TokenType.IDENTIFIER, "Expected parameter name.");
+                parameters.add(previous());
             } while (match(TokenType.COMMA));
         }
         consume(TokenType.RIGHT_PAREN, "Expected ')' after" + kind + " name.");
@@ -217,7 +290,6 @@ public class Parser {
     private Expr assignment() {
         Expr expr = or();
         if (match(TokenType.EQUAL)) {
-            Token equals = previous();
             Expr value = assignment();
             if (expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable) expr).name;
@@ -227,7 +299,7 @@ public class Parser {
                 Expr.Get get = (Expr.Get) expr;
                 return new Expr.Set(get.object, get.name, value);
             }
-            error(equals, "Invalid assignment target.");
+            error("Invalid assignment target.");
         }
 
         return expr;
@@ -307,12 +379,13 @@ public class Parser {
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
                 if (arguments.size() >= 255) {
-                    error(peek(), "Can't have more than 255 arguments.");
+                    error("Can't have more than 255 arguments.");
                 }
                 arguments.add(expression());
             } while (match(TokenType.COMMA));
         }
-        Token paren = consume(TokenType.RIGHT_PAREN, "Expected ')' after function arguments.");
+        consume(TokenType.RIGHT_PAREN, "Expected ')' after function arguments.");
+        Token paren = previous();
         return new Expr.Call(callee, paren, arguments);
     }
 
@@ -322,7 +395,8 @@ public class Parser {
             if (match(TokenType.LEFT_PAREN)) {
                 expr = finishCall(expr);
             } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER, "Expected property name after '.'.");
+                consume(IDENTIFIER, "Expected property name after '.'.");
+                Token name = previous();
                 expr = new Expr.Get(expr, name);
             } else {
                 break;
@@ -339,7 +413,7 @@ public class Parser {
         if (match(TokenType.NIL))
             return new Expr.Literal(null);
         if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
         if (match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
@@ -349,7 +423,8 @@ public class Parser {
         if (match(SUPER)) {
             Token keyword = previous();
             consume(DOT, "Expected '.' after 'super'.");
-            Token method = consume(IDENTIFIER, "Expected superclass method name");
+            consume(IDENTIFIER, "Expected superclass method name");
+            Token method = previous();
             return new Expr.Super(keyword, method);
         }
         if (match(TokenType.THIS)) {
@@ -362,7 +437,7 @@ public class Parser {
         // to primary, when this statement is reached, it means that all
         // the checks have failed and this is an invalid token
         // in the place of an expression
-        throw error(peek(), "Expected expression.");
+        throw error("Expected expression.");
     }
 
     // only if the one of the expected token matches with the next token,
@@ -379,49 +454,51 @@ public class Parser {
 
     // the next token has to match else it's an error. eg. a semicolon, left paren,
     // etc..
-    private Token consume(TokenType type, String message) {
-        if (check(type))
-            return advance();
-        throw error(peek(), message);
+    private void consume(TokenType type, String message) {
+        if (!check(type))
+            throw error(message);
+        advance();
     }
 
     // check the next token
     private boolean check(TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().type == type;
+        return peek() == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd())
             current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return overflowed || peek() == TokenType.EOF;
     }
 
-    private Token peek() {
-        return tokens.get(current);
+    private TokenType peek() {
+        return tokens.type(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
-    private ParseError error(Token token, String message) {
-        Fox.error(current, message);
+    private ParseError error(String message) {
+        if (partial && isAtEnd()) {
+            throw new EndOfInput();
+        }
+        errors.error(current, message);
         return new ParseError();
     }
 
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON)
+            if (tokens.type(current - 1) == TokenType.SEMICOLON)
                 return;
 
-            switch (peek().type) {
+            switch (peek()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -430,6 +507,7 @@ public class Parser {
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case YIELD:
                     return;
             }
             advance();
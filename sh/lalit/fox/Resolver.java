@@ -6,9 +6,13 @@ import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // depth of a variable that isn't declared in any local scope
+    static final int GLOBAL = -1;
+
+    private final ErrorReporter errors;
+    private final Stack<Map<Symbol, Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private Stmt.Function currentDeclaration = null;
     private ClassType currentClass = ClassType.NONE;
 
     private enum FunctionType {
@@ -24,8 +28,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // a local's slot is its index in the scope's frame, see Environment
+    private static class Local {
+        final int slot;
+        boolean defined;
+
+        Local(int slot, boolean defined) {
+            this.slot = slot;
+            this.defined = defined;
+        }
+    }
+
+    Resolver(ErrorReporter errors) {
+        this.errors = errors;
     }
 
     void resolve(List<Stmt> statements) {
@@ -44,19 +59,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        Stmt.Function enclosingDeclaration = currentDeclaration;
         currentFunction = type;
+        currentDeclaration = function;
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // methods keep `this` in the first slot of their own frame
+            scopes.peek().put(Symbol.THIS, new Local(0, true));
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
+        function.slots = scopes.peek().size();
         endScope();
         currentFunction = enclosingFunction;
+        currentDeclaration = enclosingDeclaration;
     }
 
     void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<Symbol, Local>());
     }
 
     void endScope() {
@@ -67,32 +90,44 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if (scopes.isEmpty())
             return;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Fox.error(name, "Already a variable with name '" + name.lexeme + "' exists.");
+        Map<Symbol, Local> scope = scopes.peek();
+        if (scope.containsKey(name.symbol)) {
+            errors.error(name, "Already a variable with name '" + name.lexeme + "' exists.");
+            return;
         }
-        scope.put(name.lexeme, false);
+        scope.put(name.symbol, new Local(scope.size(), false));
     }
 
     void define(Token name) {
         if (scopes.isEmpty())
             return;
 
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.symbol).defined = true;
     }
 
-    void resolveLocal(Expr expr, Token name) {
+    // number of environments between the current one and the one the
+    // variable was declared in. globals are looked up by name at runtime
+    int resolveDepth(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            if (scopes.get(i).containsKey(name.symbol)) {
+                return scopes.size() - 1 - i;
             }
         }
+        return GLOBAL;
+    }
+
+    int resolveSlot(Token name, int depth) {
+        if (depth == GLOBAL) {
+            return -1;
+        }
+        return scopes.get(scopes.size() - 1 - depth).get(name.symbol).slot;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
+        stmt.slots = scopes.peek().size();
         endScope();
         return null;
     }
@@ -105,26 +140,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         define(stmt.name);
         // The environment where “this” is
         // bound is always right inside the environment where we store “super”.
-        if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Fox.error(stmt.superclass.name, "A class cannot inherit from itself.");
+        if (stmt.superclass != null && stmt.name.symbol == stmt.superclass.name.symbol) {
+            errors.error(stmt.superclass.name, "A class cannot inherit from itself.");
         }
         if (stmt.superclass != null) {
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
             beginScope();
-            scopes.peek().put("super", true);
+            scopes.peek().put(Symbol.SUPER, new Local(0, true));
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.symbol == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) {
             endScope();
         }
@@ -150,17 +182,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.empty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Fox.error(expr.name, "Can't read local variable in it's own initializer.");
+        if (!scopes.empty() && scopes.peek().containsKey(expr.name.symbol)
+                && !scopes.peek().get(expr.name.symbol).defined) {
+            errors.error(expr.name, "Can't read local variable in it's own initializer.");
         }
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
         return null;
     }
 
@@ -190,13 +225,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Fox.error(stmt.keyword, "Can't return from top-level code.");
+            errors.error(stmt.keyword, "Can't return from top-level code.");
         }
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Fox.error(stmt.keyword, "Can't return a value from an initializer.");
+                errors.error(stmt.keyword, "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
+            // `return f(x);` has nothing left to do after the call, so the
+            // interpreter can make it once this function's frame is gone
+            if (stmt.value instanceof Expr.Call) {
+                ((Expr.Call) stmt.value).tail = true;
+            }
         }
         return null;
     }
@@ -205,6 +245,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
         resolve(stmt.body);
+        if (stmt.increment != null) {
+            resolve(stmt.increment);
+        }
+        return null;
+    }
+
+    // a function with a yield in its body is a generator
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            errors.error(stmt.keyword, "Can't yield from top-level code.");
+        } else if (currentFunction == FunctionType.INITIALIZER) {
+            errors.error(stmt.keyword, "Can't yield from an initializer.");
+        } else {
+            currentDeclaration.generator = true;
+        }
+        if (stmt.value != null) {
+            resolve(stmt.value);
+        }
         return null;
     }
 
@@ -240,20 +299,22 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Fox.error(expr.keyword, "Can't use 'super' outside of a class.");
+            errors.error(expr.keyword, "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Fox.error(expr.keyword, "Can't use 'super' in a class without a superclass.");
+            errors.error(expr.keyword, "Can't use 'super' in a class without a superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveDepth(expr.keyword);
+        expr.slot = resolveSlot(expr.keyword, expr.depth);
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Fox.error(expr.keyword, "Can't use 'this' keyword outside a class");
+            errors.error(expr.keyword, "Can't use 'this' keyword outside a class");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveDepth(expr.keyword);
+        expr.slot = resolveSlot(expr.keyword, expr.depth);
         return null;
     }
 
@@ -0,0 +1,27 @@
+package sh.lalit.fox;
+
+class RuntimeError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Token token;
+    final int line;
+
+    RuntimeError(Token token, String message) {
+        super(message);
+        this.token = token;
+        this.line = token.line;
+    }
+
+    // used by the VM, which only keeps line numbers around
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
+    }
+
+    // thrown by natives, which don't know where they were called from.
+    // Interpreter.call gives it the line of the call
+    RuntimeError(String message) {
+        this(-1, message);
+    }
+}
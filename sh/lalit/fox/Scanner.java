@@ -2,19 +2,29 @@ package sh.lalit.fox;
 
 import static sh.lalit.fox.TokenType.*;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
+// scans UTF-8 source straight out of a ByteBuffer, which can be a file mapped
+// by FoxEngine.compile(Path). everything but the insides of strings and
+// comments is ASCII, so the bytes are scanned as they are and only string
+// literals are decoded. the tokens go into a TokenBuffer, with the lexemes
+// of names, numbers and strings in a LexemeTable
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<Token>();
+    private final ByteBuffer source;
+    private final int length;
+    private final ErrorReporter errors;
+    private final LexemeTable lexemes;
+    private final TokenBuffer tokens;
     private int start;
     private int current; // the cursor. "abcd" => if the current is at b, advance returns b and goes to
                          // current goes to c
     private int line;
     private static final Map<String, TokenType> keywords;
+    // the lexeme of every token type that is always spelled the same
+    private static final String[] fixed = new String[TokenType.values().length];
 
     static {
         keywords = new HashMap<>();
@@ -34,28 +44,89 @@ public class Scanner {
         keywords.put("true", TRUE);
         keywords.put("while", WHILE);
         keywords.put("var", VAR);
+        keywords.put("yield", YIELD);
+
+        String[] punctuation = { "(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*",
+                "!", "!=", "=", "==", ">", ">=", "<", "<=" };
+        for (int i = 0; i < punctuation.length; i++) {
+            fixed[i] = punctuation[i];
+        }
+        for (Map.Entry<String, TokenType> keyword : keywords.entrySet()) {
+            fixed[keyword.getValue().ordinal()] = keyword.getKey();
+        }
+        fixed[EOF.ordinal()] = "";
+    }
+
+    public Scanner(String source, ErrorReporter errors) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), errors);
+    }
+
+    // source is scanned from its position to its limit
+    public Scanner(ByteBuffer source, ErrorReporter errors) {
+        this(source, errors, new TokenBuffer(lexemeTable()), 0);
     }
 
-    public Scanner(String source) {
+    // scans source onto the end of tokens, numbering lines from line. see
+    // FoxSession, which scans a line at a time
+    Scanner(ByteBuffer source, ErrorReporter errors, TokenBuffer tokens, int line) {
         this.source = source;
+        this.length = source.limit();
+        this.start = source.position();
+        this.current = source.position();
+        this.errors = errors;
+        this.tokens = tokens;
+        this.lexemes = tokens.lexemes;
+        this.line = line;
     }
 
-    public List<Token> scanTokens() {
+    // an empty table for a TokenBuffer. keywords are found by the same
+    // lookup as names, so they're in it from the start
+    static LexemeTable lexemeTable() {
+        LexemeTable lexemes = new LexemeTable();
+        for (Map.Entry<String, TokenType> keyword : keywords.entrySet()) {
+            ByteBuffer bytes = ByteBuffer.wrap(keyword.getKey().getBytes(StandardCharsets.UTF_8));
+            lexemes.add(bytes, 0, bytes.limit(), keyword.getKey(), keyword.getValue(), null);
+        }
+        return lexemes;
+    }
+
+    public TokenBuffer scanTokens() {
         while (!isAtEnd()) {
             // cursor at start of next lexeme
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, -1, line);
+        return tokens;
+    }
+
+    // a buffer that's empty to start with and scans a token at a time as
+    // the parser gets to it, see TokenBuffer
+    TokenBuffer scanOnDemand() {
+        tokens.scanner = this;
         return tokens;
     }
 
+    // scans up to the end of the next token, or adds the EOF
+    void scanNext() {
+        int end = tokens.end();
+        while (tokens.end() == end) {
+            if (isAtEnd()) {
+                tokens.add(EOF, -1, line);
+                tokens.scanner = null;
+                return;
+            }
+            start = current;
+            scanToken();
+        }
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
     public void scanToken() {
-        char c = advance();
+        int c = advance();
         switch (c) {
             case '(':
                 addToken(LEFT_PAREN);
@@ -123,39 +194,46 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Fox.error(line, "Unexpected character");
+                    // one error for a character of several bytes
+                    while (!isAtEnd() && (peek() & 0xc0) == 0x80)
+                        advance();
+                    errors.error(line, "Unexpected character");
                 }
                 break;
         }
     }
 
-    private char advance() {
-        return source.charAt(current++);
+    private int advance() {
+        return source.get(current++) & 0xff;
     }
 
-    private char peek() {
+    private int peek() {
         if (isAtEnd())
             return '\0';
-        return source.charAt(current);
+        return source.get(current) & 0xff;
     }
 
-    private char peekPeek() {
-        if (current + 1 >= source.length())
+    private int peekPeek() {
+        if (current + 1 >= length)
             return '\0';
-        return source.charAt(current + 1);
+        return source.get(current + 1) & 0xff;
+    }
+
+    // the lexeme of a token that is always spelled the same
+    static String lexeme(TokenType type) {
+        return fixed[type.ordinal()];
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        tokens.add(type, -1, line);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private void addToken(LexemeTable.Entry lexeme) {
+        tokens.add(lexeme.type, lexeme.id, line);
     }
 
     private boolean match(char expected) {
-        if (source.charAt(current) != expected || isAtEnd()) {
+        if (isAtEnd() || (source.get(current) & 0xff) != expected) {
             return false;
         }
         current++;
@@ -169,14 +247,25 @@ public class Scanner {
             advance();
         }
         if (isAtEnd()) {
-            Fox.error(line, "Unterminated string");
+            errors.error(line, "Unterminated string");
+            return;
         }
         advance(); // for the closing "
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        LexemeTable.Entry lexeme = lexemes.get(source, start, current);
+        if (lexeme == null) {
+            String text = decode(start, current);
+            lexeme = lexemes.add(source, start, current, text, STRING, text.substring(1, text.length() - 1));
+        }
+        addToken(lexeme);
+    }
+
+    private String decode(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private boolean isDigit(char c) {
+    private boolean isDigit(int c) {
         return c >= '0' && c <= '9';
     }
 
@@ -188,24 +277,29 @@ public class Scanner {
             while (isDigit(peek()))
                 advance();
         }
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        LexemeTable.Entry lexeme = lexemes.get(source, start, current);
+        if (lexeme == null) {
+            String text = decode(start, current);
+            lexeme = lexemes.add(source, start, current, text, NUMBER, Double.parseDouble(text));
+        }
+        addToken(lexeme);
     }
 
-    private boolean isAlpha(char c) {
+    private boolean isAlpha(int c) {
         return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c == '_');
     }
 
-    private boolean isAlphaNumeric(char c) {
+    private boolean isAlphaNumeric(int c) {
         return isDigit(c) || isAlpha(c);
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek()))
             advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null)
-            type = IDENTIFIER;
-        addToken(type);
+        LexemeTable.Entry lexeme = lexemes.get(source, start, current);
+        if (lexeme == null) {
+            lexeme = lexemes.add(source, start, current, null, IDENTIFIER, null);
+        }
+        addToken(lexeme);
     }
 }
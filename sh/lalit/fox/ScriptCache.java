@@ -0,0 +1,66 @@
+package sh.lalit.fox;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// the scripts a FoxEngine has compiled, by the SHA-256 of their source, so
+// the same source is only scanned, parsed and resolved once. a script's AST
+// grows with its source, so the cache is bounded by the length of the
+// sources it holds and drops the least recently used scripts past that
+final class ScriptCache {
+    private final long capacity; // in bytes of source
+    private long size = 0;
+    private final LinkedHashMap<ByteBuffer, Entry> scripts = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final class Entry {
+        final CompiledScript script;
+        final int size;
+
+        Entry(CompiledScript script, int size) {
+            this.script = script;
+            this.size = size;
+        }
+    }
+
+    ScriptCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    // source is left where it was
+    static ByteBuffer key(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has SHA-256
+            throw new AssertionError(e);
+        }
+    }
+
+    synchronized CompiledScript get(ByteBuffer key) {
+        Entry entry = scripts.get(key);
+        return entry == null ? null : entry.script;
+    }
+
+    // scripts bigger than the whole cache aren't kept
+    synchronized void put(ByteBuffer key, CompiledScript script, int size) {
+        if (size > capacity) {
+            return;
+        }
+        Entry previous = scripts.put(key, new Entry(script, size));
+        if (previous != null) {
+            this.size -= previous.size;
+        }
+        this.size += size;
+        Iterator<Map.Entry<ByteBuffer, Entry>> eldest = scripts.entrySet().iterator();
+        while (this.size > capacity) {
+            this.size -= eldest.next().getValue().size;
+            eldest.remove();
+        }
+    }
+}
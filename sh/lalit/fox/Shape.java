@@ -0,0 +1,43 @@
+package sh.lalit.fox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// the layout of an instance's fields: which index of FoxInstance.values each
+// field lives at. instances start with EMPTY and move along a transition
+// every time a new field is assigned, so instances whose fields are assigned
+// in the same order end up sharing the same shape. that lets Get and Set
+// nodes cache the index per shape (see InlineCache) instead of hashing the
+// field name on every access
+class Shape {
+    static final Shape EMPTY = new Shape(new HashMap<>());
+
+    private final Map<Symbol, Integer> indices;
+    private final Map<Symbol, Shape> transitions = new HashMap<>();
+
+    private Shape(Map<Symbol, Integer> indices) {
+        this.indices = indices;
+    }
+
+    int indexOf(Symbol name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    int size() {
+        return indices.size();
+    }
+
+    // the shape of an instance with this shape after `name` is added to it.
+    // shapes are shared by every interpreter, hence the lock
+    synchronized Shape with(Symbol name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<Symbol, Integer> nextIndices = new HashMap<>(indices);
+            nextIndices.put(name, indices.size());
+            next = new Shape(nextIndices);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
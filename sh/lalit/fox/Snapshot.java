@@ -0,0 +1,781 @@
+package sh.lalit.fox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// the binary form of a program that's been through the front end, so it can
+// be saved and run again later without scanning, parsing and resolving it.
+//
+//   magic "FOXS", version
+//   strings: count, then each as its utf-8 length and bytes
+//   statements: count, then each as a tag byte followed by its fields
+//
+// ints are written 7 bits a byte, low bits first, with the top bit set on
+// every byte but the last. every name and string literal is written once in
+// the string table and referred to by index, so reading a snapshot creates
+// each distinct string once. a token is its type, its lexeme and its line as
+// the difference from the line of the token before it, and the type is left
+// out where only an identifier can be. what the resolver and the Optimizer
+// worked out (depths, slots, frame sizes, tail calls, generators and loop
+// shapes) is kept, and what the engines fill in while the program runs isn't
+final class Snapshot {
+    private static final int MAGIC = 0x464f5853;
+    // bumped whenever the layout, the nodes or TokenType change
+    static final int VERSION = 1;
+
+    private static final int NULL = 0;
+
+    // Expr tags
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int GET = 4;
+    private static final int SET = 5;
+    private static final int SUPER = 6;
+    private static final int THIS = 7;
+    private static final int GROUPING = 8;
+    private static final int LITERAL = 9;
+    private static final int LOGICAL = 10;
+    private static final int UNARY = 11;
+    private static final int VARIABLE = 12;
+
+    // Stmt tags
+    private static final int BLOCK = 1;
+    private static final int CLASS = 2;
+    private static final int EXPRESSION = 3;
+    private static final int FUNCTION = 4;
+    private static final int IF = 5;
+    private static final int PRINT = 6;
+    private static final int RETURN = 7;
+    private static final int VAR = 8;
+    private static final int WHILE = 9;
+    private static final int YIELD = 10;
+
+    // literal values
+    private static final int NIL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+    private static final int INTEGER = 5; // a number that's a small whole number
+
+    // the kinds of scope a Reader keeps track of
+    private static final int BLOCK_SCOPE = 0;
+    private static final int FUNCTION_SCOPE = 1;
+    private static final int METHOD_SCOPE = 2;
+    private static final int SUPER_SCOPE = 3;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private Snapshot() {
+    }
+
+    // whether the file starts like a snapshot
+    static boolean matches(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] magic = in.readNBytes(4);
+            return magic.length == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    static void write(List<Stmt> statements, OutputStream out) throws IOException {
+        Writer writer = new Writer();
+        writer.writeStatements(statements);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        Writer header = new Writer();
+        header.writeInt(writer.strings.size());
+        for (String string : writer.strings.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            header.writeInt(bytes.length);
+            header.bytes.write(bytes);
+        }
+        header.bytes.writeTo(data);
+        writer.bytes.writeTo(data);
+        data.flush();
+    }
+
+    static List<Stmt> read(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a fox snapshot.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Snapshot version " + version + " can't be read, expected " + VERSION + ".");
+            }
+            return new Reader(buffer).readProgram();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | ClassCastException e) {
+            throw new IOException("Snapshot is damaged.");
+        }
+    }
+
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // the string table in the order strings were first written
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        private int line = 0; // of the last token written
+
+        void writeInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                bytes.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes.write(value);
+        }
+
+        // a depth can be Resolver.GLOBAL, which as an int would take 5 bytes
+        void writeDepth(int depth) {
+            writeInt(depth - Resolver.GLOBAL);
+        }
+
+        void writeBoolean(boolean value) {
+            bytes.write(value ? 1 : 0);
+        }
+
+        void writeString(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            writeInt(index);
+        }
+
+        void writeToken(Token token) {
+            bytes.write(token.type.ordinal());
+            writeName(token);
+        }
+
+        // a token that can only be an identifier, written without its type
+        void writeName(Token token) {
+            writeString(token.lexeme);
+            // most tokens are on the line of the one before them
+            int delta = token.line - line;
+            writeInt((delta << 1) ^ (delta >> 31));
+            line = token.line;
+        }
+
+        void writeStatements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                write(statement);
+            }
+        }
+
+        void write(Stmt stmt) {
+            if (stmt == null) {
+                bytes.write(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        void write(Expr expr) {
+            if (expr == null) {
+                bytes.write(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        void writeFunction(Stmt.Function stmt) {
+            writeName(stmt.name);
+            writeInt(stmt.params.size());
+            for (Token param : stmt.params) {
+                writeName(param);
+            }
+            writeStatements(stmt.body);
+            writeInt(stmt.slots);
+            writeBoolean(stmt.generator);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            bytes.write(BLOCK);
+            writeStatements(stmt.statements);
+            writeInt(stmt.slots);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            bytes.write(CLASS);
+            writeName(stmt.name);
+            write(stmt.superclass);
+            writeInt(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                writeFunction(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            bytes.write(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            bytes.write(FUNCTION);
+            writeFunction(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            bytes.write(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            bytes.write(PRINT);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            bytes.write(RETURN);
+            writeToken(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            bytes.write(VAR);
+            writeName(stmt.name);
+            write(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            bytes.write(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            write(stmt.increment);
+            writeBoolean(stmt.reuseFrame);
+            writeBoolean(stmt.counted);
+            writeBoolean(stmt.hoistLimit);
+            return null;
+        }
+
+        @Override
+        public Void visitYieldStmt(Stmt.Yield stmt) {
+            bytes.write(YIELD);
+            writeToken(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            bytes.write(ASSIGN);
+            writeName(expr.name);
+            write(expr.value);
+            writeDepth(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            bytes.write(BINARY);
+            write(expr.left);
+            writeToken(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            bytes.write(CALL);
+            write(expr.callee);
+            writeToken(expr.paren);
+            writeInt(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                write(argument);
+            }
+            writeBoolean(expr.tail);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            bytes.write(GET);
+            write(expr.object);
+            writeName(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            bytes.write(SET);
+            write(expr.object);
+            writeName(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            bytes.write(SUPER);
+            writeToken(expr.keyword);
+            writeName(expr.method);
+            writeDepth(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            bytes.write(THIS);
+            writeToken(expr.keyword);
+            writeDepth(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            bytes.write(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            bytes.write(LITERAL);
+            Object value = expr.value;
+            if (value == null) {
+                bytes.write(NIL);
+            } else if (value instanceof Boolean) {
+                bytes.write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double && isInteger((Double) value)) {
+                bytes.write(INTEGER);
+                writeInt((int) (double) (Double) value);
+            } else if (value instanceof Double) {
+                bytes.write(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    bytes.write((int) (bits >>> shift));
+                }
+            } else {
+                bytes.write(STRING);
+                writeString((String) value);
+            }
+            return null;
+        }
+
+        // -0 isn't, since it would come back as 0
+        private static boolean isInteger(double value) {
+            return value >= 0 && value <= Integer.MAX_VALUE && value == Math.rint(value)
+                    && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0);
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            bytes.write(LOGICAL);
+            write(expr.left);
+            writeToken(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            bytes.write(UNARY);
+            writeToken(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            bytes.write(VARIABLE);
+            writeName(expr.name);
+            writeDepth(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+    }
+
+    private static final class Scope {
+        final int kind;
+        int declared; // how many locals have been read so far
+        int used = 0; // how many slots the variables read so far need
+        boolean yields = false; // for a function, whether a yield was read
+
+        Scope(int kind, int declared) {
+            this.kind = kind;
+            this.declared = declared;
+        }
+    }
+
+    // reads straight from the buffer, which can be a mapped file. nothing in
+    // the file is trusted: counts, indices, depths and slots are checked as
+    // they're read, and the flags the Optimizer sets on a loop against its
+    // shape, so a damaged file is reported here instead of failing once it
+    // runs
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private String[] strings;
+        private int line = 0; // of the last token read
+        // the scopes the Resolver had open at this point, innermost last
+        private final List<Scope> scopes = new ArrayList<>();
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        List<Stmt> readProgram() {
+            strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return readStatements();
+        }
+
+        private int readInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        // how many things follow, each of which takes at least a byte
+        private int readCount() {
+            return Objects.checkIndex(readInt(), buffer.remaining() + 1);
+        }
+
+        private int readDepth() {
+            return Objects.checkIndex(readInt(), scopes.size() + 1) + Resolver.GLOBAL;
+        }
+
+        // the slot of a variable at depth, -1 for a global. a variable can't
+        // be `this` or `super`, which the engines expect to find in their
+        // slots
+        private int readSlot(int depth) {
+            int slot = readInt();
+            if (depth == Resolver.GLOBAL) {
+                check(slot == -1);
+                return slot;
+            }
+            Scope scope = scopes.get(scopes.size() - 1 - depth);
+            check(scope.kind != SUPER_SCOPE && !(scope.kind == METHOD_SCOPE && slot == 0));
+            return use(scope, slot);
+        }
+
+        // the slot of `this` or `super`, the first one of a scope of kind
+        private int readSlot(int depth, int kind) {
+            int slot = readInt();
+            check(depth != Resolver.GLOBAL && slot == 0);
+            Scope scope = scopes.get(scopes.size() - 1 - depth);
+            check(scope.kind == kind);
+            return use(scope, slot);
+        }
+
+        private int use(Scope scope, int slot) {
+            check(slot >= 0);
+            scope.used = Math.max(scope.used, slot + 1);
+            return slot;
+        }
+
+        private void beginScope(int kind, int declared) {
+            scopes.add(new Scope(kind, declared));
+        }
+
+        private void declare() {
+            if (!scopes.isEmpty()) {
+                scopes.get(scopes.size() - 1).declared++;
+            }
+        }
+
+        // slots is the size of the scope's frame, which the Resolver made
+        // one slot for each local
+        private int endScope(int slots) {
+            Scope scope = scopes.remove(scopes.size() - 1);
+            check(slots == scope.declared && scope.used <= slots);
+            return slots;
+        }
+
+        // the scope of the function being read
+        private Scope function() {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                if (scopes.get(i).kind == FUNCTION_SCOPE || scopes.get(i).kind == METHOD_SCOPE) {
+                    return scopes.get(i);
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        // whether a counted loop's variable is a local, which the engines
+        // keep unboxed, assigned by the increment
+        private static boolean countsLocal(Stmt.While loop) {
+            Expr.Variable variable = (Expr.Variable) ((Expr.Binary) loop.condition).left;
+            Expr.Assign increment = (Expr.Assign) loop.increment;
+            return variable.depth != Resolver.GLOBAL && increment.depth == variable.depth
+                    && increment.slot == variable.slot;
+        }
+
+        private static void check(boolean valid) {
+            if (!valid) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        private boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        private Token readToken() {
+            return readToken(tokenTypes[Objects.checkIndex(buffer.get(), tokenTypes.length)]);
+        }
+
+        private Token readName() {
+            return readToken(TokenType.IDENTIFIER);
+        }
+
+        private Token readToken(TokenType type) {
+            String lexeme = readString();
+            int delta = readInt();
+            line += (delta >>> 1) ^ -(delta & 1);
+            return new Token(type, lexeme, null, line);
+        }
+
+        private String readString() {
+            return strings[Objects.checkIndex(readInt(), strings.length)];
+        }
+
+        private List<Stmt> readStatements() {
+            int count = readCount();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStmt());
+            }
+            return statements;
+        }
+
+        private Stmt.Function readFunction(int kind) {
+            Token name = readName();
+            int count = readCount();
+            List<Token> params = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                params.add(readName());
+            }
+            // methods keep `this` in the first slot of their own frame
+            beginScope(kind, kind == METHOD_SCOPE ? count + 1 : count);
+            Stmt.Function function = new Stmt.Function(name, params, readStatements());
+            boolean yields = scopes.get(scopes.size() - 1).yields;
+            function.slots = endScope(readInt());
+            function.generator = readBoolean();
+            check(function.generator || !yields);
+            return function;
+        }
+
+        private Stmt readStmt() {
+            Stmt stmt = readOptionalStmt();
+            check(stmt != null);
+            return stmt;
+        }
+
+        private Stmt readOptionalStmt() {
+            int tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BLOCK: {
+                    beginScope(BLOCK_SCOPE, 0);
+                    Stmt.Block block = new Stmt.Block(readStatements());
+                    block.slots = endScope(readInt());
+                    return block;
+                }
+                case CLASS: {
+                    Token name = readName();
+                    declare();
+                    Expr.Variable superclass = (Expr.Variable) readOptionalExpr();
+                    int count = readCount();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    if (superclass != null) {
+                        beginScope(SUPER_SCOPE, 1);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        methods.add(readFunction(METHOD_SCOPE));
+                    }
+                    if (superclass != null) {
+                        endScope(1);
+                    }
+                    return new Stmt.Class(name, superclass, methods);
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case FUNCTION:
+                    declare();
+                    return readFunction(FUNCTION_SCOPE);
+                case IF: {
+                    Expr condition = readExpr();
+                    Stmt thenBranch = readStmt();
+                    return new Stmt.If(condition, thenBranch, readOptionalStmt());
+                }
+                case PRINT:
+                    return new Stmt.Print(readExpr());
+                case RETURN: {
+                    Token keyword = readToken();
+                    return new Stmt.Return(keyword, readOptionalExpr());
+                }
+                case VAR: {
+                    Token name = readName();
+                    declare();
+                    return new Stmt.Var(name, readOptionalExpr());
+                }
+                case WHILE: {
+                    Expr condition = readExpr();
+                    Stmt.While loop = new Stmt.While(condition, readStmt());
+                    loop.increment = readOptionalExpr();
+                    loop.reuseFrame = readBoolean();
+                    loop.counted = readBoolean();
+                    loop.hoistLimit = readBoolean();
+                    check(!(loop.reuseFrame && !(loop.body instanceof Stmt.Block)
+                            || loop.hoistLimit && !Optimizer.isComparison(loop.condition)
+                            || loop.counted && !(Optimizer.isCountedLoop(loop) && countsLocal(loop))));
+                    return loop;
+                }
+                case YIELD: {
+                    function().yields = true;
+                    Token keyword = readToken();
+                    return new Stmt.Yield(keyword, readOptionalExpr());
+                }
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+
+        private Expr readExpr() {
+            Expr expr = readOptionalExpr();
+            check(expr != null);
+            return expr;
+        }
+
+        private Expr readOptionalExpr() {
+            int tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign assign = new Expr.Assign(readName(), readExpr());
+                    assign.depth = readDepth();
+                    assign.slot = readSlot(assign.depth);
+                    return assign;
+                }
+                case BINARY: {
+                    Expr left = readExpr();
+                    Token operator = readToken();
+                    return new Expr.Binary(left, operator, readExpr());
+                }
+                case CALL: {
+                    Expr callee = readExpr();
+                    Token paren = readToken();
+                    int count = readCount();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(readExpr());
+                    }
+                    Expr.Call call = new Expr.Call(callee, paren, arguments);
+                    call.tail = readBoolean();
+                    return call;
+                }
+                case GET: {
+                    Expr object = readExpr();
+                    return new Expr.Get(object, readName());
+                }
+                case SET: {
+                    Expr object = readExpr();
+                    Token name = readName();
+                    return new Expr.Set(object, name, readExpr());
+                }
+                case SUPER: {
+                    Token keyword = readToken();
+                    Expr.Super expr = new Expr.Super(keyword, readName());
+                    expr.depth = readDepth();
+                    expr.slot = readSlot(expr.depth, SUPER_SCOPE);
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(readToken());
+                    expr.depth = readDepth();
+                    expr.slot = readSlot(expr.depth, METHOD_SCOPE);
+                    return expr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case LITERAL:
+                    return new Expr.Literal(readLiteral());
+                case LOGICAL: {
+                    Expr left = readExpr();
+                    Token operator = readToken();
+                    return new Expr.Logical(left, operator, readExpr());
+                }
+                case UNARY: {
+                    Token operator = readToken();
+                    return new Expr.Unary(operator, readExpr());
+                }
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(readName());
+                    variable.depth = readDepth();
+                    variable.slot = readSlot(variable.depth);
+                    return variable;
+                }
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+
+        private Object readLiteral() {
+            switch (buffer.get()) {
+                case NIL:
+                    return null;
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+                case NUMBER:
+                    return buffer.getDouble();
+                case INTEGER:
+                    return (double) readInt();
+                case STRING:
+                    return readString();
+                default:
+                    throw new IndexOutOfBoundsException();
+            }
+        }
+    }
+}
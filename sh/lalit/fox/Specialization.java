@@ -0,0 +1,13 @@
+package sh.lalit.fox;
+
+// what a `+` node has specialised itself to, see Interpreter.add. a node
+// starts out UNINITIALIZED, picks a state from the operands of its first
+// evaluation, and drops to GENERIC for good if they ever stop matching it
+enum Specialization {
+    UNINITIALIZED,
+    // both operands are numeric expressions, added without boxing
+    DOUBLE,
+    NUMBER,
+    STRING,
+    GENERIC
+}
@@ -14,6 +14,7 @@ abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitYieldStmt(Yield stmt);
   }
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
@@ -25,6 +26,7 @@ abstract class Stmt {
     return visitor.visitBlockStmt(this);
     }
     final List<Stmt> statements;
+    int slots;
   }
   static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -66,6 +68,10 @@ abstract class Stmt {
     final Token name;
     final  List<Token> params;
     final  List<Stmt> body;
+    int slots;
+    int calls;
+    JitCode compiled;
+    boolean generator;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -131,6 +137,25 @@ abstract class Stmt {
     }
     final Expr condition;
     final  Stmt body;
+    Expr increment;
+    boolean reuseFrame;
+    boolean counted;
+    boolean hoistLimit;
+    int iterations;
+    JitCode compiled;
+  }
+  static class Yield extends Stmt {
+    Yield(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+    return visitor.visitYieldStmt(this);
+    }
+    final Token keyword;
+    final  Expr value;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
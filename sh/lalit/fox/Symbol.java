@@ -0,0 +1,48 @@
+package sh.lalit.fox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a name, interned so there is one Symbol per distinct name in the JVM. the
+// scanner interns every name once per script and tokens carry the symbol, so
+// the globals, methods, shapes and scopes keyed by symbols compare them by
+// identity and use a hash worked out when the symbol was made, without
+// looking at the characters of the name again
+final class Symbol {
+    private static final ConcurrentHashMap<String, Symbol> table = new ConcurrentHashMap<>();
+    private static final AtomicInteger count = new AtomicInteger();
+
+    static final Symbol INIT = of("init");
+    static final Symbol THIS = of("this");
+    static final Symbol SUPER = of("super");
+
+    final String name;
+    final int id; // in the order symbols were made
+    private final int hash;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+        // ids are consecutive, so they're spread out over the bits a hash
+        // table picks its bucket from
+        this.hash = id * 0x9e3779b9;
+    }
+
+    static Symbol of(String name) {
+        Symbol symbol = table.get(name);
+        if (symbol == null) {
+            symbol = table.computeIfAbsent(name, key -> new Symbol(key, count.getAndIncrement()));
+        }
+        return symbol;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
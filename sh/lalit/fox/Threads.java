@@ -0,0 +1,102 @@
+package sh.lalit.fox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// the threads generators and tasks run Fox code on. they're virtual threads on
+// JDKs that have them (21 on), which are cheap to start and to switch between,
+// and daemon platform threads otherwise. either way they don't keep the
+// program running once the script has finished. scripts and the front end
+// run on the pooled big-stack threads of a stackPool instead
+final class Threads {
+    // Thread.ofVirtual().unstarted(Runnable), null before JDK 21
+    private static final MethodHandle virtualThread = virtualThreadFactory();
+    // the java stack a call takes in the tree-walking engines, with room for
+    // the expressions and statements it's nested in. measured at about 2k
+    private static final long FRAME_BYTES = 8 * 1024;
+    // how long an idle thread of a stack pool waits for more work
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private Threads() {
+    }
+
+    // a platform thread stack with room for maxDepth calls
+    static long stackSize(int maxDepth) {
+        return Math.min(maxDepth * FRAME_BYTES, 1L << 32);
+    }
+
+    // daemon platform threads with a stack of stackSize, started as they're
+    // needed and kept for the next task until they've been idle a while.
+    // starting a thread with a big stack costs more than most scripts take
+    // to run, so one is only started if the others are all busy
+    static ExecutorService stackPool(long stackSize) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), task -> {
+                    Thread thread = new Thread(null, task, "fox", stackSize);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // runs task on a thread of a stackPool and waits for it. what it throws
+    // is thrown again on the caller's thread. the wait can't be given up
+    // halfway, an interrupt is kept for later
+    static <T> T onStack(ExecutorService pool, Supplier<T> task) {
+        FutureTask<T> future = new FutureTask<>(task::get);
+        pool.execute(future);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // stackSize is only used for platform threads, 0 gives the default size.
+    // a virtual thread's stack grows as far as a platform thread's default
+    static Thread newThread(String name, long stackSize, Runnable task) {
+        if (virtualThread != null) {
+            try {
+                return (Thread) virtualThread.invokeExact(task);
+            } catch (Throwable e) {
+                // fall back to a platform thread
+            }
+        }
+        Thread thread = new Thread(null, task, name, stackSize);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static MethodHandle virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return MethodHandles.publicLookup()
+                    .findVirtual(builderClass, "unstarted", MethodType.methodType(Thread.class, Runnable.class))
+                    .bindTo(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
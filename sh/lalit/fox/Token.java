@@ -5,12 +5,22 @@ public class Token {
   final String lexeme;
   final Object literal;
   final int line;
+  final Symbol symbol; // the interned lexeme of names, this and super
 
   public Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, isName(type) ? Symbol.of(lexeme) : null);
+  }
+
+  Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = symbol;
+  }
+
+  static boolean isName(TokenType type) {
+    return type == TokenType.IDENTIFIER || type == TokenType.THIS || type == TokenType.SUPER;
   }
 
   public String toString() {
@@ -0,0 +1,115 @@
+package sh.lalit.fox;
+
+import java.util.Arrays;
+
+// the tokens of a script as parallel arrays, which is what the Scanner makes
+// and the Parser reads. a token is its type, its line and the LexemeTable
+// entry holding its lexeme and literal, -1 for tokens always spelled the
+// same. a Token object is only made for the tokens the AST keeps.
+//
+// tokens are numbered from the start of the script. a buffer from
+// Scanner.scanOnDemand scans each token when it's first asked for, and
+// discard drops the ones the Parser is done with, so a script of any length
+// only ever has a few tokens in memory
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    // how many lexemes the table can hold before discard starts it over
+    private static final int MAX_LEXEMES = 4096;
+
+    final LexemeTable lexemes;
+    private final int keywords; // the entries of the table that are never dropped
+    Scanner scanner; // scans more tokens when they're asked for, see Scanner.scanOnDemand
+    private byte[] types = new byte[1024];
+    private int[] lines = new int[1024];
+    private int[] entries = new int[1024];
+    private int base = 0; // the number of the first token in the arrays
+    private int size = 0;
+
+    TokenBuffer(LexemeTable lexemes) {
+        this.lexemes = lexemes;
+        this.keywords = lexemes.size();
+    }
+
+    void add(TokenType type, int entry, int line) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            lines = Arrays.copyOf(lines, size * 2);
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        types[size] = (byte) type.ordinal();
+        lines[size] = line;
+        entries[size] = entry;
+        size++;
+    }
+
+    // takes the last token back out, so more can be scanned onto the end of
+    // the buffer after its EOF, see FoxSession
+    void removeLast() {
+        size--;
+    }
+
+    // the number of the token after the last one scanned
+    int end() {
+        return base + size;
+    }
+
+    // at can scan more tokens and grow the arrays, so it has to be called
+    // before they're read from
+    TokenType type(int index) {
+        int i = at(index);
+        return TYPES[types[i]];
+    }
+
+    int line(int index) {
+        int i = at(index);
+        return lines[i];
+    }
+
+    Object literal(int index) {
+        int i = at(index);
+        int entry = entries[i];
+        return entry < 0 ? null : lexemes.entry(entry).literal;
+    }
+
+    Token token(int index) {
+        int i = at(index);
+        int entry = entries[i];
+        TokenType type = TYPES[types[i]];
+        if (entry < 0) {
+            return new Token(type, Scanner.lexeme(type), null, lines[i]);
+        }
+        LexemeTable.Entry lexeme = lexemes.entry(entry);
+        return new Token(type, lexeme.text, lexeme.literal, lines[i], lexeme.symbol);
+    }
+
+    private int at(int index) {
+        while (index >= base + size && scanner != null) {
+            scanner.scanNext();
+        }
+        return index - base;
+    }
+
+    // drops the tokens before index. the Tokens made from them so far keep
+    // their lexemes, so past MAX_LEXEMES the table is started over with only
+    // the lexemes of the tokens still here
+    void discard(int index) {
+        int count = Math.min(index - base, size);
+        System.arraycopy(types, count, types, 0, size - count);
+        System.arraycopy(lines, count, lines, 0, size - count);
+        System.arraycopy(entries, count, entries, 0, size - count);
+        size -= count;
+        base += count;
+        if (lexemes.size() > MAX_LEXEMES) {
+            LexemeTable.Entry[] kept = new LexemeTable.Entry[size];
+            for (int i = 0; i < size; i++) {
+                kept[i] = entries[i] >= keywords ? lexemes.entry(entries[i]) : null;
+            }
+            lexemes.truncate(keywords);
+            for (int i = 0; i < size; i++) {
+                if (kept[i] != null) {
+                    entries[i] = lexemes.add(kept[i]).id;
+                }
+            }
+        }
+    }
+}
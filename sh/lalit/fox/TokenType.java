@@ -42,6 +42,7 @@ enum TokenType {
     TRUE,
     VAR,
     WHILE,
+    YIELD,
 
     EOF
 }
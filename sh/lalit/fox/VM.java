@@ -0,0 +1,751 @@
+package sh.lalit.fox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// stack based virtual machine that runs the bytecode produced by Compiler.
+// it's an alternative to Interpreter (which stays the reference semantics):
+// locals live in slots of a single value stack, calls push a CallFrame instead
+// of recursing on the java stack and globals are indexed by slot
+public class VM {
+    // the stack grows as calls are made. each frame is given room for as
+    // many values as a function can have locals
+    private static final int FRAME_SLOTS = 256;
+    // marks a global slot that has been handed out by the compiler but not
+    // yet defined by the running program
+    private static final Object UNDEFINED = new Object();
+
+    private static class CallFrame {
+        VMClosure closure;
+        int ip;
+        int base; // stack index of the frame's slot zero
+        VMGenerator generator; // set when the frame is a generator's
+    }
+
+    private Object[] stack = new Object[FRAME_SLOTS * 64];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private final int maxFrames;
+    private VMUpvalue openUpvalues = null;
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globalValues = new Object[64];
+
+    // where print statements and runtime errors go, see FoxContext
+    private final PrintStream out;
+    private final ErrorReporter errors;
+
+    // maxFrames is the deepest the calls can go, see Interpreter.maxDepth
+    VM(int maxFrames, PrintStream out, ErrorReporter errors) {
+        this.maxFrames = maxFrames;
+        this.out = out;
+        this.errors = errors;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new CallFrame();
+        }
+        Arrays.fill(globalValues, UNDEFINED);
+    }
+
+    // natives are defined by FoxContext
+    void define(String name, Object value) {
+        globalValues[globalSlot(name)] = value;
+    }
+
+    // global names are mapped to slots when they are compiled, so the same
+    // name always gets the same slot across REPL lines
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        int index = globalSlots.size();
+        if (index == globalValues.length) {
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+            globalValues = Arrays.copyOf(globalValues, index * 2);
+            Arrays.fill(globalValues, index, index * 2, UNDEFINED);
+        }
+        globalNames[index] = name;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    public void interpret(VMFunction script) {
+        VMClosure closure = new VMClosure(script);
+        push(closure);
+        try {
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            errors.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void push(Object value) {
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        return stack[--stackTop];
+    }
+
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+
+    private RuntimeError numberOperandsError(Object left) {
+        return error(!(left instanceof Double) ? "Left Operand must be a number" : "Right operand must be a number");
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int base = frame.base;
+        int ip = frame.ip;
+        Object[] stack = this.stack;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[stackTop++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    break;
+                case OpCode.NIL:
+                    stack[stackTop++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[stackTop++] = true;
+                    break;
+                case OpCode.FALSE:
+                    stack[stackTop++] = false;
+                    break;
+                case OpCode.POP:
+                    stackTop--;
+                    break;
+                case OpCode.GET_LOCAL:
+                    stack[stackTop++] = stack[base + (code[ip++] & 0xff)];
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[stackTop - 1];
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globalValues[slot];
+                    if (value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    stack[stackTop++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globalValues[slot] = stack[--stackTop];
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globalValues[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable " + globalNames[slot] + ".");
+                    }
+                    globalValues[slot] = stack[stackTop - 1];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    VMUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    stack[stackTop++] = upvalue.location >= 0 ? stack[upvalue.location] : upvalue.closed;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    VMUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.location >= 0) {
+                        stack[upvalue.location] = stack[stackTop - 1];
+                    } else {
+                        upvalue.closed = stack[stackTop - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = stack[stackTop - 1];
+                    if (!(object instanceof VMInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances can have properties.");
+                    }
+                    VMInstance instance = (VMInstance) object;
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    VMClosure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[stackTop - 1] = new VMBoundMethod(instance, method);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = stack[stackTop - 2];
+                    if (!(object instanceof VMInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances can have fields.");
+                    }
+                    Object value = stack[--stackTop];
+                    ((VMInstance) object).fields.put(name, value);
+                    stack[stackTop - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VMClass superclass = (VMClass) stack[--stackTop];
+                    VMClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[stackTop - 1] = new VMBoundMethod(stack[stackTop - 1], method);
+                    break;
+                }
+                case OpCode.EQUAL:
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[stackTop - 1];
+                    Object left = stack[stackTop - 2];
+                    if (!(left instanceof Double && right instanceof Double)) {
+                        frame.ip = ip;
+                        throw numberOperandsError(left);
+                    }
+                    boolean equal = Interpreter.isEqual(left, right);
+                    stack[--stackTop - 1] = code[ip - 1] == OpCode.EQUAL ? equal : !equal;
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL: {
+                    Object right = stack[stackTop - 1];
+                    Object left = stack[stackTop - 2];
+                    if (!(left instanceof Double && right instanceof Double)) {
+                        frame.ip = ip;
+                        throw numberOperandsError(left);
+                    }
+                    double a = (double) left;
+                    double b = (double) right;
+                    boolean result;
+                    switch (code[ip - 1]) {
+                        case OpCode.GREATER:
+                            result = a > b;
+                            break;
+                        case OpCode.GREATER_EQUAL:
+                            result = a >= b;
+                            break;
+                        case OpCode.LESS:
+                            result = a < b;
+                            break;
+                        default:
+                            result = a <= b;
+                    }
+                    stack[--stackTop - 1] = result;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object left = stack[stackTop - 2];
+                    Object result = add(left, stack[stackTop - 1]);
+                    if (result == null) {
+                        frame.ip = ip;
+                        throw numberOperandsError(left);
+                    }
+                    stack[--stackTop - 1] = result;
+                    break;
+                }
+                case OpCode.ADD_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    Object left = stack[slot];
+                    Object result = add(left, stack[stackTop - 1]);
+                    if (result == null) {
+                        frame.ip = ip;
+                        throw numberOperandsError(left);
+                    }
+                    stack[slot] = result;
+                    stack[--stackTop] = null;
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE: {
+                    Object right = stack[stackTop - 1];
+                    Object left = stack[stackTop - 2];
+                    if (!(left instanceof Double && right instanceof Double)) {
+                        frame.ip = ip;
+                        throw numberOperandsError(left);
+                    }
+                    double a = (double) left;
+                    double b = (double) right;
+                    double result;
+                    switch (code[ip - 1]) {
+                        case OpCode.SUBTRACT:
+                            result = a - b;
+                            break;
+                        case OpCode.MULTIPLY:
+                            result = a * b;
+                            break;
+                        default:
+                            result = a / b;
+                    }
+                    stack[--stackTop - 1] = Interpreter.box(result);
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[stackTop - 1] = !Interpreter.isTruthy(stack[stackTop - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object operand = stack[stackTop - 1];
+                    if (!(operand instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[stackTop - 1] = Interpreter.box(-(double) operand);
+                    break;
+                }
+                case OpCode.PRINT:
+                    out.println(Interpreter.stringify(stack[--stackTop]));
+                    break;
+                case OpCode.JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(stack[stackTop - 1])) {
+                        ip += offset;
+                    }
+                    break;
+                }
+                case OpCode.JUMP_UNLESS: {
+                    Object right = stack[stackTop - 1];
+                    Object left = stack[stackTop - 2];
+                    if (!(left instanceof Double && right instanceof Double)) {
+                        frame.ip = ip + 1;
+                        throw numberOperandsError(left);
+                    }
+                    double a = (double) left;
+                    double b = (double) right;
+                    boolean result;
+                    switch (code[ip]) {
+                        case OpCode.GREATER:
+                            result = a > b;
+                            break;
+                        case OpCode.GREATER_EQUAL:
+                            result = a >= b;
+                            break;
+                        case OpCode.LESS:
+                            result = a < b;
+                            break;
+                        case OpCode.LESS_EQUAL:
+                            result = a <= b;
+                            break;
+                        case OpCode.EQUAL:
+                            result = Interpreter.isEqual(left, right);
+                            break;
+                        default:
+                            result = !Interpreter.isEqual(left, right);
+                    }
+                    stackTop -= 2;
+                    int offset = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                    ip += result ? 3 : 3 + offset;
+                    break;
+                }
+                case OpCode.LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(stack[stackTop - argCount - 1], argCount);
+                    stack = this.stack;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(name, argCount);
+                    stack = this.stack;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int depth = frameCount;
+                    callValue(stack[stackTop - argCount - 1], argCount);
+                    if (frameCount > depth && frames[frameCount - 1].generator == null) {
+                        replaceCaller(argCount);
+                    }
+                    stack = this.stack;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.TAIL_INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    int depth = frameCount;
+                    invoke(name, argCount);
+                    if (frameCount > depth && frames[frameCount - 1].generator == null) {
+                        replaceCaller(argCount);
+                    }
+                    stack = this.stack;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    VMFunction function = (VMFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VMClosure closure = new VMClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    stack[stackTop++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(stackTop - 1);
+                    stackTop--;
+                    break;
+                case OpCode.YIELD: {
+                    Object value = stack[--stackTop];
+                    suspend(frame, ip);
+                    stack[stackTop++] = value;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[--stackTop];
+                    if (frame.generator != null) {
+                        // a finished generator returns nil from then on
+                        frame.generator.done = true;
+                        frame.generator.running = false;
+                        frame.generator.slots = null;
+                        result = null;
+                    }
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        // pop the script closure
+                        stackTop = 0;
+                        return;
+                    }
+                    Arrays.fill(stack, base, stackTop, null);
+                    stackTop = base;
+                    stack[stackTop++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    stack[stackTop++] = new VMClass(name);
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    Object superclass = stack[stackTop - 2];
+                    if (!(superclass instanceof VMClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass has to be a class.");
+                    }
+                    VMClass subclass = (VMClass) stack[--stackTop];
+                    subclass.methods.putAll(((VMClass) superclass).methods);
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VMClosure method = (VMClosure) stack[--stackTop];
+                    ((VMClass) stack[stackTop - 1]).methods.put(name, method);
+                    break;
+                }
+                default:
+                    frame.ip = ip;
+                    throw error("Unknown opcode " + code[ip - 1] + ".");
+            }
+        }
+    }
+
+    // what + makes of two values, null if it can't add them
+    private static Object add(Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return Interpreter.box((double) left + (double) right);
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        if (left instanceof String && right instanceof Double || left instanceof Double && right instanceof String) {
+            return Interpreter.stringify(left) + Interpreter.stringify(right);
+        }
+        return null;
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof VMClosure) {
+            call((VMClosure) callee, argCount);
+            return;
+        }
+        if (callee instanceof VMGenerator) {
+            resume((VMGenerator) callee, argCount);
+            return;
+        }
+        if (callee instanceof VMBoundMethod) {
+            VMBoundMethod bound = (VMBoundMethod) callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+        if (callee instanceof VMClass) {
+            VMClass klass = (VMClass) callee;
+            stack[stackTop - argCount - 1] = new VMInstance(klass);
+            VMClosure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+        if (callee instanceof FoxCallable) {
+            FoxCallable function = (FoxCallable) callee;
+            if (argCount != function.arity()) {
+                throw error("Expected " + function.arity() + " arguments but got " + argCount + ".");
+            }
+            List<Object> arguments = new ArrayList<>(Arrays.asList(stack).subList(stackTop - argCount, stackTop));
+            // natives never call back into the interpreter
+            Object result = function.call(null, arguments);
+            stackTop -= argCount + 1;
+            stack[stackTop++] = result;
+            return;
+        }
+        throw error("Can only call functions and classes.");
+    }
+
+    // the receiver is already in the slot zero of the method's frame
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[stackTop - argCount - 1];
+        if (!(receiver instanceof VMInstance)) {
+            throw error("Only instances can have properties.");
+        }
+        VMInstance instance = (VMInstance) receiver;
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[stackTop - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+        VMClosure method = instance.klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private void call(VMClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+        int slot = stackTop - argCount - 1;
+        if (closure.function.generator) {
+            // nothing runs until the generator is called
+            VMGenerator generator = new VMGenerator(closure, Arrays.copyOfRange(stack, slot, stackTop));
+            Arrays.fill(stack, slot, stackTop, null);
+            stackTop = slot;
+            stack[stackTop++] = generator;
+            return;
+        }
+        CallFrame frame = pushFrame(0);
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = slot;
+        frame.generator = null;
+    }
+
+    // the next frame, with room on the stack for another values on top of
+    // the frame's own
+    private CallFrame pushFrame(int values) {
+        if (frameCount == maxFrames) {
+            throw error("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+            for (int i = frameCount; i < frames.length; i++) {
+                frames[i] = new CallFrame();
+            }
+        }
+        if (stack.length - stackTop < values + FRAME_SLOTS) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackTop + values + FRAME_SLOTS));
+        }
+        return frames[frameCount++];
+    }
+
+    // puts a generator's frame back where the generator is on the stack
+    private void resume(VMGenerator generator, int argCount) {
+        if (argCount != 0) {
+            throw error("Expected 0 arguments but got " + argCount + ".");
+        }
+        if (generator.running) {
+            throw error("Generator is already running.");
+        }
+        if (generator.done) {
+            stack[stackTop - 1] = null;
+            return;
+        }
+        int base = stackTop - 1;
+        Object[] slots = generator.slots;
+        CallFrame frame = pushFrame(slots.length);
+        System.arraycopy(slots, 0, stack, base, slots.length);
+        stackTop = base + slots.length;
+        // lowest first, so the highest ends up at the head of the list
+        for (int i = generator.upvalues.length - 1; i >= 0; i--) {
+            VMUpvalue upvalue = generator.upvalues[i];
+            upvalue.location = base + generator.upvalueSlots[i];
+            stack[upvalue.location] = upvalue.closed;
+            upvalue.closed = null;
+            upvalue.next = openUpvalues;
+            openUpvalues = upvalue;
+        }
+        generator.running = true;
+        frame.closure = generator.closure;
+        frame.ip = generator.ip;
+        frame.base = base;
+        frame.generator = generator;
+    }
+
+    // takes a generator's frame off the stack until it's called again. the
+    // caller gets what was yielded in the slot the generator was called from
+    private void suspend(CallFrame frame, int ip) {
+        VMGenerator generator = frame.generator;
+        int base = frame.base;
+        generator.ip = ip;
+        generator.slots = Arrays.copyOfRange(stack, base, stackTop);
+        int count = 0;
+        for (VMUpvalue upvalue = openUpvalues; upvalue != null && upvalue.location >= base; upvalue = upvalue.next) {
+            count++;
+        }
+        generator.upvalues = new VMUpvalue[count];
+        generator.upvalueSlots = new int[count];
+        for (int i = 0; i < count; i++) {
+            VMUpvalue upvalue = openUpvalues;
+            openUpvalues = upvalue.next;
+            generator.upvalues[i] = upvalue;
+            generator.upvalueSlots[i] = upvalue.location - base;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            upvalue.next = null;
+        }
+        generator.running = false;
+        Arrays.fill(stack, base, stackTop, null);
+        stackTop = base;
+        frameCount--;
+    }
+
+    // a tail call has pushed the callee's frame, which takes the place of the
+    // caller's since the caller only has to return what it gets. a call to a
+    // native pushes no frame and leaves its result for the RETURN after it
+    private void replaceCaller(int argCount) {
+        CallFrame caller = frames[frameCount - 2];
+        CallFrame callee = frames[frameCount - 1];
+        closeUpvalues(caller.base);
+        System.arraycopy(stack, callee.base, stack, caller.base, argCount + 1);
+        int top = caller.base + argCount + 1;
+        Arrays.fill(stack, top, stackTop, null);
+        stackTop = top;
+        caller.closure = callee.closure;
+        caller.ip = 0;
+        frameCount--;
+    }
+
+    private VMUpvalue captureUpvalue(int location) {
+        VMUpvalue previous = null;
+        VMUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+        VMUpvalue created = new VMUpvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            VMUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+}
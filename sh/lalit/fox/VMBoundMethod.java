@@ -0,0 +1,16 @@
+package sh.lalit.fox;
+
+class VMBoundMethod {
+    final Object receiver;
+    final VMClosure method;
+
+    VMBoundMethod(Object receiver, VMClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package sh.lalit.fox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VMClass {
+    final String name;
+    // inherited methods are copied in by OpCode.INHERIT before the class's own
+    // methods are added, so lookups never walk the superclass chain
+    final Map<String, VMClosure> methods = new HashMap<>();
+
+    VMClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,16 @@
+package sh.lalit.fox;
+
+class VMClosure {
+    final VMFunction function;
+    final VMUpvalue[] upvalues;
+
+    VMClosure(VMFunction function) {
+        this.function = function;
+        this.upvalues = new VMUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package sh.lalit.fox;
+
+// a function compiled by Compiler. it's only a prototype, at runtime it's
+// always wrapped in a VMClosure which holds the captured upvalues
+class VMFunction {
+    final String name; // null for the top-level script
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+    boolean generator = false; // calling it creates a VMGenerator
+
+    VMFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            return "<script>";
+        }
+        return "<fn " + name + ">";
+    }
+}
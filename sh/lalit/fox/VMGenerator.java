@@ -0,0 +1,25 @@
+package sh.lalit.fox;
+
+// what calling a generator function returns on the VM. between calls the
+// generator's frame is kept here instead of on the stack: the values in its
+// slots, where it's up to and the upvalues that were open over its slots,
+// which are closed while it's suspended and opened again when it resumes
+class VMGenerator {
+    final VMClosure closure;
+    Object[] slots; // slot zero onwards
+    int ip = 0;
+    VMUpvalue[] upvalues = new VMUpvalue[0]; // highest slot first, like VM.openUpvalues
+    int[] upvalueSlots = new int[0];
+    boolean running = false;
+    boolean done = false;
+
+    VMGenerator(VMClosure closure, Object[] slots) {
+        this.closure = closure;
+        this.slots = slots;
+    }
+
+    @Override
+    public String toString() {
+        return "<generator>";
+    }
+}
@@ -0,0 +1,14 @@
+package sh.lalit.fox;
+
+// a variable captured by a closure. while the variable is still on the VM
+// stack, location is its stack index. once the enclosing scope ends the value
+// is moved into closed and location becomes -1
+class VMUpvalue {
+    int location;
+    Object closed;
+    VMUpvalue next; // next open upvalue further down the stack
+
+    VMUpvalue(int location) {
+        this.location = location;
+    }
+}
@@ -6,6 +6,9 @@ import java.util.Arrays;
 import java.util.List;
 
 public class GenerateAst {
+    // each type is "Name : constructor fields" optionally followed by
+    // "; mutable fields" which aren't set by the parser but filled in later,
+    // e.g. the slot indices computed by the Resolver
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
             System.err.println("Usage: generate_ast <output dir>");
@@ -16,29 +19,30 @@ public class GenerateAst {
                 outDir,
                 "Expr",
                 Arrays.asList(
-                        "Assign   : Token name, Expr value",
-                        "Binary   : Expr left, Token operator, Expr right",
-                        "Call     : Expr callee, Token paren, List<Expr> arguments",
-                        "Get      : Expr object, Token name",
-                        "Set      : Expr object, Token name, Expr value", // name is the field name in the instance
-                        "Super    : Token keyword, Token method",
-                        "This     : Token keyword",
+                        "Assign   : Token name, Expr value ; int depth = Resolver.GLOBAL, int slot",
+                        "Binary   : Expr left, Token operator, Expr right ; Specialization state = Specialization.UNINITIALIZED",
+                        "Call     : Expr callee, Token paren, List<Expr> arguments ; boolean tail",
+                        "Get      : Expr object, Token name ; InlineCache cache",
+                        "Set      : Expr object, Token name, Expr value ; InlineCache cache", // name is the field name in the instance
+                        "Super    : Token keyword, Token method ; int depth = Resolver.GLOBAL, int slot",
+                        "This     : Token keyword ; int depth = Resolver.GLOBAL, int slot",
                         "Grouping : Expr expression",
                         "Literal  : Object value",
                         "Logical  : Expr left, Token operator, Expr right",
                         "Unary    : Token operator, Expr right",
-                        "Variable : Token name"));
+                        "Variable : Token name ; int depth = Resolver.GLOBAL, int slot"));
 
         defineAst(outDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements ; int slots",
                 "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body ; int slots, int calls, JitCode compiled, boolean generator",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value", // storing the keyword `return` to report errors later
                 "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"));
+                "While      : Expr condition, Stmt body ; Expr increment, boolean reuseFrame, boolean counted, boolean hoistLimit, int iterations, JitCode compiled",
+                "Yield      : Token keyword, Expr value"));
     }
 
     private static void defineAst(String outDir, String baseName, List<String> types)
@@ -54,8 +58,9 @@ public class GenerateAst {
         defineVisitor(writer, baseName, types);
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split(";");
+            String mutableFields = fields.length > 1 ? fields[1].trim() : "";
+            defineType(writer, baseName, className, fields[0].trim(), mutableFields);
         }
         writer.println();
         writer.println("  abstract <R> R accept(Visitor<R> visitor);");
@@ -64,7 +69,7 @@ public class GenerateAst {
     }
 
     private static void defineType(
-            PrintWriter writer, String baseName, String className, String fieldList) {
+            PrintWriter writer, String baseName, String className, String fieldList, String mutableFieldList) {
         writer.println("  static class " + className + " extends " + baseName + " {");
         writer.println("    " + className + "(" + fieldList + ") {"); // constructor
         String fields[] = fieldList.split(",");
@@ -81,6 +86,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (!mutableFieldList.isEmpty()) {
+            for (String field : mutableFieldList.split(",")) {
+                writer.println("    " + field.trim() + ";");
+            }
+        }
         writer.println("  }");
     }
 